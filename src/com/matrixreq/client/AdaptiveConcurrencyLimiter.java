@@ -0,0 +1,158 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.client;
+
+import com.matrixreq.lib.HttpConnectionPool;
+import com.matrixreq.lib.LoggerConfig;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits the number of requests running at the same time against a server, and adapts the limit to what the server
+ * can take (AIMD): the limit grows by about one each time a full limit of requests went through fine, and is halved
+ * when the server answers 429, 502 or 503. A Retry-After header holds all the new requests until the time given.
+ * Latency isn't used: the requests to a server are too different (a search, an upload...) for a slow one to mean
+ * the server is overloaded.
+ *
+ * A decrease only happens once per round: the requests started before a decrease don't lower the limit again, so a
+ * burst of errors from the same round halves the limit only once.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    public static final int DEFAULT_MAX_LIMIT = 64;
+    private static final double BACKOFF_RATIO = 0.5;
+    private static final long MAX_RETRY_AFTER_MILLIS = 5 * 60 * 1000L;
+
+    private static final Map<String, AdaptiveConcurrencyLimiter> limiters = new HashMap<>();
+
+    /**
+     * A slot taken by acquire, to give back with release
+     */
+    public static class Permit {
+        private final long round;
+
+        Permit(long round) {
+            this.round = round;
+        }
+    }
+
+    private final int maxLimit;
+    private double limit;
+    private int inFlight = 0;
+    private long round = 0;
+    private long pausedUntil = 0;
+
+    public AdaptiveConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MAX_LIMIT);
+    }
+
+    /**
+     * @param initialLimit number of requests allowed at first
+     * @param maxLimit the limit never goes above
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+    }
+
+    /**
+     * @param url any url of the server
+     * @return the limiter shared by all the clients of the server (same scheme, host and port), which starts at the
+     * number of connections HttpConnectionPool allows per server
+     */
+    public static AdaptiveConcurrencyLimiter forServer(String url) {
+        String key = url;
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() != null)
+                key = uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort();
+        } catch (Exception ignore) {
+        }
+        synchronized (limiters) {
+            return limiters.computeIfAbsent(key, k -> new AdaptiveConcurrencyLimiter(
+                Math.max(DEFAULT_INITIAL_LIMIT, HttpConnectionPool.getMaxPerRoute()), DEFAULT_MAX_LIMIT));
+        }
+    }
+
+    /**
+     * Waits for a free slot, and for the end of a Retry-After pause
+     * @return the permit to release once the response is there
+     * @throws InterruptedException
+     */
+    public synchronized Permit acquire() throws InterruptedException {
+        while (true) {
+            long wait = pausedUntil - System.currentTimeMillis();
+            if (wait > 0)
+                wait(wait);
+            else if (inFlight >= (int) limit)
+                wait();
+            else
+                break;
+        }
+        inFlight++;
+        return new Permit(round);
+    }
+
+    /**
+     * Gives back a slot and adapts the limit to the response
+     * @param permit
+     * @param status HTTP status, 0 if the request failed without a response
+     * @param retryAfter value of the Retry-After header, may be null
+     */
+    public synchronized void release(Permit permit, int status, String retryAfter) {
+        inFlight--;
+        if (status == 429 || status == 502 || status == 503) {
+            decrease(permit, BACKOFF_RATIO);
+            pause(retryAfter);
+        } else if (status > 0 && inFlight + 1 >= (int) limit) {
+            // only grow when the limit is actually used
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    private void decrease(Permit permit, double ratio) {
+        if (permit.round != round)
+            return;
+        round++;
+        double old = limit;
+        limit = Math.max(1, limit * ratio);
+        if ((int) old != (int) limit)
+            LoggerConfig.getLogger().debug("concurrency limit lowered from {} to {}", (int) old, (int) limit);
+    }
+
+    private void pause(String retryAfter) {
+        long delay = RetryPolicy.parseRetryAfter(retryAfter);
+        if (delay < 0)
+            return;
+        long until = System.currentTimeMillis() + Math.min(delay, MAX_RETRY_AFTER_MILLIS);
+        if (until > pausedUntil) {
+            pausedUntil = until;
+            LoggerConfig.getLogger().warn("server asked to retry after {}, requests are held until then", retryAfter);
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
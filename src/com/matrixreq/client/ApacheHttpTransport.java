@@ -0,0 +1,53 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.client;
+
+import java.io.IOException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * The default transport: Apache HttpClient over HTTP/1.1, with the connections of HttpConnectionPool
+ */
+public class ApacheHttpTransport implements RestTransport {
+
+    private final CloseableHttpClient httpClient;
+
+    public ApacheHttpTransport(CloseableHttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    @Override
+    public CloseableHttpResponse execute(HttpUriRequest request, HttpClientContext context) throws IOException {
+        return httpClient.execute(request, context);
+    }
+
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Closes the client, the shared pool stays open
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+}
@@ -19,6 +19,7 @@ package com.matrixreq.client;
 import com.matrixreq.lib.LoggerConfig;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 
@@ -28,16 +29,28 @@ import java.io.InterruptedIOException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
+/**
+ * Retries a request after a network error, waiting a random, exponentially growing time (see RetryPolicy) between
+ * attempts. A POST or PATCH that was already sent is not retried: the server may have processed it. Nothing is
+ * retried on a thread that must not wait, see RetryPolicy.setWaitingAllowed.
+ * The connection of the failed attempt is given back to the pool before waiting.
+ */
 public class CustomHttpRequestRetryHandler implements HttpRequestRetryHandler {
 
-    private static final int DELAY_TO_RETRY_SECONDS = 5;
+    private static final String START_ATTRIBUTE = "com.matrixreq.retry.start";
     private final Logger logger = LoggerConfig.getLogger();
     private final int maxRetriesCount;
     private final int maxDurationMinutes;
+    private final RetryPolicy policy;
 
     public CustomHttpRequestRetryHandler(int maxRetriesCount, int maxDurationMinutes) {
+        this(maxRetriesCount, maxDurationMinutes, new RetryPolicy(maxRetriesCount));
+    }
+
+    public CustomHttpRequestRetryHandler(int maxRetriesCount, int maxDurationMinutes, RetryPolicy policy) {
         this.maxRetriesCount = maxRetriesCount;
         this.maxDurationMinutes = maxDurationMinutes;
+        this.policy = policy;
     }
 
     /**
@@ -53,25 +66,46 @@ public class CustomHttpRequestRetryHandler implements HttpRequestRetryHandler {
         Throwable rootCause = ExceptionUtils.getRootCause(exception);
         logger.warn("request attempt failed, root cause", exception);
 
+        HttpClientContext clientContext = HttpClientContext.adapt(context);
+        Long start = clientContext.getAttribute(START_ATTRIBUTE, Long.class);
+        if (start == null) {
+            start = System.currentTimeMillis();
+            clientContext.setAttribute(START_ATTRIBUTE, start);
+        }
         if (executionCount >= maxRetriesCount) {
             logger.warn("request failed after {} retries in {} minute(s)", executionCount, maxDurationMinutes);
             return false;
-        } else if (rootCause instanceof SocketTimeoutException || exception instanceof SocketTimeoutException) {
-            return true;
-        } else if (rootCause instanceof SocketException
-                || rootCause instanceof InterruptedIOException
-                || rootCause instanceof SSLException
-                || exception instanceof SocketException
-                || exception instanceof InterruptedIOException
-                || exception instanceof SSLException) {
-            try {
-                Thread.sleep(DELAY_TO_RETRY_SECONDS * 1000);
-            } catch (InterruptedException e) {
-                logger.debug("Interrupted exception", e);
-            }
-            return true;
-        } else {
+        } else if (System.currentTimeMillis() - start > maxDurationMinutes * 60000L) {
+            logger.warn("request failed after {} retries, more than {} minute(s)", executionCount, maxDurationMinutes);
+            return false;
+        } else if (! isTransient(exception) && ! isTransient(rootCause)) {
+            return false;
+        }
+        String method = clientContext.getRequest() != null ? clientContext.getRequest().getRequestLine().getMethod() : "";
+        if (! policy.shouldRetryError(executionCount, method, clientContext.isRequestSent())) {
+            logger.warn("{} request not retried: it was sent and may have been processed", method);
             return false;
         }
+        if (! RetryPolicy.isWaitingAllowed()) {
+            logger.debug("{} request not retried on this thread, the caller sends it again later", method);
+            return false;
+        }
+        long delay = policy.backoffMillis(executionCount);
+        logger.debug("retrying {} request in {} ms", method, delay);
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            logger.debug("Interrupted exception", e);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isTransient(Throwable exception) {
+        return exception instanceof SocketTimeoutException
+                || exception instanceof SocketException
+                || exception instanceof InterruptedIOException
+                || exception instanceof SSLException;
     }
 }
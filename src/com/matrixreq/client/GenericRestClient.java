@@ -17,23 +17,30 @@
 package com.matrixreq.client;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.matrixreq.lib.HttpConnectionPool;
 import com.matrixreq.lib.LoggerConfig;
 import com.matrixreq.lib.MatrixLibException;
 import com.matrixreq.lib.StringUtil;
+import com.matrixreq.lib.ThreadUtil;
 import com.matrixreq.lib.WebUtil;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.NameValuePair;
 import org.apache.http.ParseException;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.*;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.HTTP;
@@ -42,41 +49,71 @@ import org.apache.http.util.EntityUtils;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Generic REST client
+ * The requests go through a RestTransport: by default Apache HttpClient, with the connections of HttpConnectionPool
+ * shared by all the clients, or JavaHttpTransport for HTTP/2. The responses returned by the *Extended methods
+ * must be given back with HttpConnectionPool.release (or fully read and closed), otherwise their connection stays taken
+ *
+ * With a RetryPolicy, a request answered 429, 502, 503 or 504 is sent again after the Retry-After of the response or a
+ * backoff, whatever the transport. Only the idempotent requests are, unless the caller says the request can be sent
+ * twice. The wait holds neither a connection nor a slot of the concurrency limiter, and the asynchronous requests
+ * wait on a timer, not on a thread
  * @author Administrator
  */
 public class GenericRestClient {
     protected final CloseableHttpClient httpClient;
+    protected RestTransport transport;
     protected int lastStatus;
     protected String lastStatusMessage;
     protected String baseUrl;
     protected ArrayList<String []> headers;
     protected String user, pwd;
     protected Gson gson = new Gson();
+    // null for no limit (default), AdaptiveConcurrencyLimiter.forServer to share one with the other clients of the server
+    protected AdaptiveConcurrencyLimiter limiter;
+    // retries on a status, null for none
+    protected RetryPolicy retryPolicy;
+    // runs the asynchronous retries once their wait is over
+    private static final ExecutorService RETRY_EXECUTOR = Executors.newCachedThreadPool(ThreadUtil.daemonThreads("rest-retry"));
+    // bodies smaller than this aren't worth compressing
+    public static final int MIN_COMPRESSED_SIZE = 1024;
+    protected boolean compressRequests = false;
+    protected boolean compressResponses = true;
 
     private GenericRestClient(String baseUrl, RequestConfig requestConfig) {
         this.baseUrl = baseUrl;
-        this.httpClient = HttpClients.custom()
+        this.httpClient = HttpConnectionPool.custom()
                 .setDefaultRequestConfig(requestConfig)
                 .build();
+        this.transport = new ApacheHttpTransport(httpClient);
     }
 
     private GenericRestClient(String baseUrl, RequestConfig requestConfig, int retry) {
         this.baseUrl = baseUrl;
-        this.httpClient = HttpClients.custom()
+        this.httpClient = HttpConnectionPool.custom()
                 .setDefaultRequestConfig(requestConfig)
                 .setRetryHandler(new CustomHttpRequestRetryHandler(retry, 1))
                 .build();
+        this.transport = new ApacheHttpTransport(httpClient);
+        this.retryPolicy = retry > 0 ? new RetryPolicy(retry) : null;
     }
 
     public GenericRestClient(String baseUrl) {
@@ -99,6 +136,55 @@ public class GenericRestClient {
                 .setConnectTimeout(1000 * timeoutInSeconds)
                 .setSocketTimeout(1000 * timeoutInSeconds).build(), retry);
     }
+    /**
+     * By default the requests aren't limited, other than by the connections of the pool. To adapt their number to what
+     * the server takes: setConcurrencyLimiter(AdaptiveConcurrencyLimiter.forServer(baseUrl))
+     * @param limiter null to send the requests without limit
+     */
+    public void setConcurrencyLimiter(AdaptiveConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public AdaptiveConcurrencyLimiter getConcurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * @param retryPolicy retries after a 429, 502, 503 or 504, null for none. Set by the constructor with retry
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Changes how the requests are sent, for example new JavaHttpTransport(timeout, retry) for HTTP/2. The timeout
+     * and the network error retries given to the constructor of this client only apply to the default transport, the
+     * retry policy on statuses applies to all
+     * @param transport
+     */
+    public void setTransport(RestTransport transport) {
+        this.transport = transport;
+    }
+
+    public RestTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Gzip compression of the requests and responses of this client
+     * @param requests true to send the bodies of POST, PUT... gzipped (Content-Encoding: gzip). Off by default: the
+     * server must accept compressed requests
+     * @param responses true (default) to ask for gzipped responses, they are decoded transparently
+     */
+    public void setCompression(boolean requests, boolean responses) {
+        this.compressRequests = requests;
+        this.compressResponses = responses;
+    }
+
     /**
      * Will be set for all further requests
      * @param user
@@ -125,6 +211,7 @@ public class GenericRestClient {
      * Returns the output of the POST in [0] and the cookie value in [2]
      */
     public String restPostGetCookies(String serviceUrl, ArrayList<NameValuePair> urlParameters) throws MatrixLibException {
+        CloseableHttpResponse httpResponse = null;
         try {
             HttpPost post = new HttpPost(baseUrl + serviceUrl);
             if (urlParameters != null)
@@ -136,7 +223,7 @@ public class GenericRestClient {
             cookieStore = new BasicCookieStore();
             HttpClientContext context = HttpClientContext.create();
             context.setCookieStore(cookieStore);
-            CloseableHttpResponse httpResponse = httpClient.execute(post, context);
+            httpResponse = transport.execute(post, context);
             String ret = EntityUtils.toString(httpResponse.getEntity(),"UTF-8");
             lastStatus = httpResponse.getStatusLine().getStatusCode();
             lastStatusMessage = httpResponse.getStatusLine().getReasonPhrase();
@@ -146,6 +233,8 @@ public class GenericRestClient {
             throw new MatrixLibException(ex);
         } catch (IOException ex) {
             throw new MatrixLibException(ex);
+        } finally {
+            HttpConnectionPool.release(httpResponse);
         }
     }
 
@@ -166,6 +255,20 @@ public class GenericRestClient {
         return restDo(get);
     }
 
+    /**
+     * Issue a REST GET and decodes the JSON answer while it's received, without building the whole text first
+     * @param <T>
+     * @param serviceUrl local path info to add to baseUrl
+     * @param type class or TypeToken type of the answer
+     * @return the decoded answer, null if empty
+     * @throws MatrixLibException
+     * @throws JsonSyntaxException if the answer doesn't match the type, like gson.fromJson
+     */
+    public <T> T restGetJson (String serviceUrl, Type type) throws MatrixLibException {
+        HttpGet get = new HttpGet(baseUrl + serviceUrl);
+        return restDoJson(get, type);
+    }
+
     /**
      * Issue a simple REST GET
      * @param serviceUrl local path info to add to baseUrl
@@ -218,6 +321,7 @@ public class GenericRestClient {
      */
     public void restGetFile (String serviceUrl, String fileName) throws MatrixLibException {
         HttpGet get = new HttpGet(baseUrl + serviceUrl);
+        CloseableHttpResponse httpResponse = null;
         try {
             /*
                 if (headers != null)
@@ -225,7 +329,7 @@ public class GenericRestClient {
                         get.setHeader(header[0], header[1]);
                 CloseableHttpResponse httpResponse = httpClient.execute(get);
             */
-            CloseableHttpResponse httpResponse = restDoExtended(get);
+            httpResponse = restDoExtended(get);
 
             // Below is from https://stackoverflow.com/a/52860648
             HttpEntity entity = httpResponse.getEntity();
@@ -239,6 +343,8 @@ public class GenericRestClient {
             */
         } catch (IOException | ParseException ex) {
             throw new MatrixLibException(ex);
+        } finally {
+            HttpConnectionPool.release(httpResponse);
         }
     }
 
@@ -544,8 +650,9 @@ public class GenericRestClient {
 
 
     public String restDo (HttpRequestBase base) throws MatrixLibException {
+        CloseableHttpResponse httpResponse = null;
         try {
-            CloseableHttpResponse httpResponse = restDoExtended(base);
+            httpResponse = restDoExtended(base);
             if (httpResponse.getStatusLine().getStatusCode() == 403) {
                 LoggerConfig.getLogger().error("403 Forbidden Failed to get result from UR {}", base.getURI().toString());
             }
@@ -556,28 +663,262 @@ public class GenericRestClient {
         } catch (IOException | ParseException ex) {
             LoggerConfig.getLogger().error("Failed to get result from GET at URL {}", base.getURI().toString(), ex);
             throw new MatrixLibException(ex);
+        } finally {
+            HttpConnectionPool.release(httpResponse);
         }
 
     }
 
+    /**
+     * Same as restDo, but the answer is decoded as JSON straight from the response stream
+     * @param <T>
+     * @param base
+     * @param type class or TypeToken type of the answer
+     * @return the decoded answer, null if empty
+     * @throws MatrixLibException
+     * @throws JsonSyntaxException if the answer doesn't match the type, like gson.fromJson
+     */
+    public <T> T restDoJson (HttpRequestBase base, Type type) throws MatrixLibException {
+        CloseableHttpResponse httpResponse = null;
+        try {
+            httpResponse = restDoExtended(base);
+            lastStatus = httpResponse.getStatusLine().getStatusCode();
+            lastStatusMessage = httpResponse.getStatusLine().getReasonPhrase();
+            if (lastStatus == 403) {
+                LoggerConfig.getLogger().error("403 Forbidden Failed to get result from UR {}", base.getURI().toString());
+            }
+            return readJson(httpResponse.getEntity(), type);
+        } finally {
+            HttpConnectionPool.release(httpResponse);
+        }
+    }
+
+    /**
+     * Decodes a JSON entity as it's read. The entity must still be released by the caller
+     * @param <T>
+     * @param entity may be null
+     * @param type class or TypeToken type of the content
+     * @return the decoded content, null if empty
+     * @throws MatrixLibException if the entity can't be read
+     * @throws JsonSyntaxException if the content doesn't match the type
+     */
+    protected <T> T readJson (HttpEntity entity, Type type) throws MatrixLibException {
+        if (entity == null)
+            return null;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8))) {
+            T ret = gson.fromJson(reader, type);
+            // like gson.fromJson(String): trailing content is an error
+            if (ret != null && reader.peek() != JsonToken.END_DOCUMENT)
+                throw new JsonSyntaxException("JSON document was not fully consumed.");
+            return ret;
+        } catch (JsonIOException | IOException ex) {
+            throw new MatrixLibException(ex, "Failed to read JSON result");
+        }
+    }
+
+    /**
+     * Adds the headers of this client to a request, compresses its body if asked
+     * @param base
+     * @return the context to send it with, holding the cookies of this client
+     */
+    private HttpClientContext prepare (HttpRequestBase base) {
+        if (headers != null)
+            for (String[] header: headers)
+                base.setHeader(header[0], header[1]);
+        // the client asks for gzip and decodes it unless we ask for something else
+        if (! compressResponses)
+            base.setHeader("Accept-Encoding", "identity");
+        if (compressRequests && base instanceof HttpEntityEnclosingRequestBase) {
+            HttpEntityEnclosingRequestBase withBody = (HttpEntityEnclosingRequestBase) base;
+            HttpEntity entity = withBody.getEntity();
+            if (entity != null && entity.getContentEncoding() == null
+                    && (entity.getContentLength() < 0 || entity.getContentLength() >= MIN_COMPRESSED_SIZE))
+                withBody.setEntity(new GzipCompressingEntity(entity));
+        }
+        HttpClientContext context = HttpClientContext.create();
+        if (cookieStore != null)
+            context.setAttribute(HttpClientContext.COOKIE_STORE, cookieStore);
+        return context;
+    }
+
+    /**
+     * Executes a request with the headers and cookies of this client
+     * @param base
+     * @return the response, to give back with HttpConnectionPool.release once read
+     * @throws MatrixLibException
+     */
     public CloseableHttpResponse restDoExtended (HttpRequestBase base) throws MatrixLibException {
+        return restDoExtended(base, false);
+    }
+
+    /**
+     * Executes a request with the headers and cookies of this client
+     * @param base
+     * @param resendable true if the request has the same effect when sent twice, so even a POST is retried after a
+     * 429, 502, 503 or 504
+     * @return the response, to give back with HttpConnectionPool.release once read
+     * @throws MatrixLibException a RetryLaterException when the request should be retried on a thread that must not
+     * wait, see RetryPolicy.setWaitingAllowed
+     */
+    public CloseableHttpResponse restDoExtended (HttpRequestBase base, boolean resendable) throws MatrixLibException {
         try {
-            if (headers != null)
-                for (String[] header: headers)
-                    base.setHeader(header[0], header[1]);
-            if (cookieStore != null) {
-                HttpClientContext context = HttpClientContext.create();
-                context.setAttribute(HttpClientContext.COOKIE_STORE, cookieStore);
-                return httpClient.execute(base, context);
-            } else {
-                return httpClient.execute(base);
+            HttpClientContext context = prepare(base);
+            for (int retry = 1; ; retry++) {
+                CloseableHttpResponse httpResponse = executeOnce(base, context);
+                long delay = statusRetryDelay(base, resendable, retry, httpResponse);
+                if (delay < 0)
+                    return httpResponse;
+                int status = httpResponse.getStatusLine().getStatusCode();
+                Header retryAfter = httpResponse.getFirstHeader("Retry-After");
+                HttpConnectionPool.release(httpResponse);
+                // a pooled thread isn't parked for the wait, its pool sends the call again later
+                if (! RetryPolicy.isWaitingAllowed())
+                    throw new RetryLaterException(base.getMethod() + " " + base.getURI() + " answered " + status,
+                        status, retryAfter != null ? retryAfter.getValue() : null);
+                Thread.sleep(delay);
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MatrixLibException(ex, "interrupted before doing rest request " + base.getURI() + " " + base.getMethod());
         } catch (IOException | ParseException ex) {
             LoggerConfig.getLogger().error("Error when doing a rest request {} {}", base.getURI(), base.getMethod(), ex);
             throw new MatrixLibException(ex, "error when doing rest request " + base.getURI() + " " + base.getMethod());
         }
     }
 
+    /**
+     * Sends a request once, in a slot of the concurrency limiter if there's one: each attempt is seen by the limiter
+     */
+    private CloseableHttpResponse executeOnce (HttpRequestBase base, HttpClientContext context) throws IOException, InterruptedException {
+        AdaptiveConcurrencyLimiter serverLimiter = limiter;
+        if (serverLimiter == null)
+            return transport.execute(base, context);
+        AdaptiveConcurrencyLimiter.Permit permit = serverLimiter.acquire();
+        int status = 0;
+        String retryAfter = null;
+        try {
+            CloseableHttpResponse httpResponse = transport.execute(base, context);
+            status = httpResponse.getStatusLine().getStatusCode();
+            Header header = httpResponse.getFirstHeader("Retry-After");
+            if (header != null)
+                retryAfter = header.getValue();
+            return httpResponse;
+        } finally {
+            serverLimiter.release(permit, status, retryAfter);
+        }
+    }
+
+    /**
+     * @return the time to wait before sending the request again after this response, -1 if it must not be retried
+     */
+    private long statusRetryDelay (HttpRequestBase base, boolean resendable, int retry, CloseableHttpResponse httpResponse) {
+        RetryPolicy policy = retryPolicy;
+        int status = httpResponse.getStatusLine().getStatusCode();
+        if (policy == null || ! policy.shouldRetryStatus(retry, base.getMethod(), status, resendable))
+            return -1;
+        // a streamed body can't be sent again
+        if (base instanceof HttpEntityEnclosingRequestBase) {
+            HttpEntity entity = ((HttpEntityEnclosingRequestBase) base).getEntity();
+            if (entity != null && ! entity.isRepeatable())
+                return -1;
+        }
+        Header retryAfter = httpResponse.getFirstHeader("Retry-After");
+        long delay = policy.delayMillis(retry, retryAfter != null ? retryAfter.getValue() : null);
+        LoggerConfig.getLogger().warn("{} {} answered {}, retry {} in {} ms", base.getMethod(), base.getURI(), status, retry, delay);
+        return delay;
+    }
+
+    /**
+     * Sends a request with the headers and cookies of this client without waiting for the response. The request
+     * only waits here for a slot of the concurrency limiter. With JavaHttpTransport no thread is held while waiting
+     * for the response, the default transport sends the request on the calling thread
+     * @param base
+     * @return the future response, to give back with HttpConnectionPool.release once read
+     */
+    public CompletableFuture<CloseableHttpResponse> restDoExtendedAsync (HttpRequestBase base) {
+        return restDoExtendedAsync(base, false);
+    }
+
+    /**
+     * Same as restDoExtendedAsync(base)
+     * @param base
+     * @param resendable true if the request has the same effect when sent twice, so even a POST is retried after a
+     * 429, 502, 503 or 504
+     * @return the future response, to give back with HttpConnectionPool.release once read
+     */
+    public CompletableFuture<CloseableHttpResponse> restDoExtendedAsync (HttpRequestBase base, boolean resendable) {
+        CompletableFuture<CloseableHttpResponse> ret = new CompletableFuture<>();
+        sendAsync(base, prepare(base), resendable, 1, ret);
+        return ret;
+    }
+
+    private void sendAsync (HttpRequestBase base, HttpClientContext context, boolean resendable, int retry,
+            CompletableFuture<CloseableHttpResponse> ret) {
+        AdaptiveConcurrencyLimiter serverLimiter = limiter;
+        AdaptiveConcurrencyLimiter.Permit permit;
+        try {
+            permit = serverLimiter != null ? serverLimiter.acquire() : null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            ret.completeExceptionally(new MatrixLibException(ex, "interrupted before doing rest request " + base.getURI() + " " + base.getMethod()));
+            return;
+        }
+        transport.executeAsync(base, context).whenComplete((httpResponse, error) -> {
+            if (permit != null) {
+                Header retryAfter = httpResponse != null ? httpResponse.getFirstHeader("Retry-After") : null;
+                serverLimiter.release(permit, httpResponse != null ? httpResponse.getStatusLine().getStatusCode() : 0,
+                    retryAfter != null ? retryAfter.getValue() : null);
+            }
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                LoggerConfig.getLogger().error("Error when doing a rest request {} {}", base.getURI(), base.getMethod(), cause);
+                ret.completeExceptionally(new MatrixLibException(cause instanceof Exception ? (Exception) cause : new Exception(cause),
+                    "error when doing rest request " + base.getURI() + " " + base.getMethod()));
+                return;
+            }
+            long delay = statusRetryDelay(base, resendable, retry, httpResponse);
+            if (delay < 0) {
+                ret.complete(httpResponse);
+                return;
+            }
+            HttpConnectionPool.release(httpResponse);
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, RETRY_EXECUTOR)
+                .execute(() -> sendAsync(base, context, resendable, retry + 1, ret));
+        });
+    }
+
+    /**
+     * Same as restDo without waiting for the response, see restDoExtendedAsync
+     * @param base
+     * @return the future answer
+     */
+    public CompletableFuture<String> restDoAsync (HttpRequestBase base) {
+        return restDoExtendedAsync(base).thenApply(httpResponse -> {
+            try {
+                lastStatus = httpResponse.getStatusLine().getStatusCode();
+                lastStatusMessage = httpResponse.getStatusLine().getReasonPhrase();
+                if (lastStatus == 403) {
+                    LoggerConfig.getLogger().error("403 Forbidden Failed to get result from UR {}", base.getURI().toString());
+                }
+                return EntityUtils.toString(httpResponse.getEntity(),"UTF-8");
+            } catch (IOException | ParseException ex) {
+                LoggerConfig.getLogger().error("Failed to get result from GET at URL {}", base.getURI().toString(), ex);
+                throw new CompletionException(new MatrixLibException(ex));
+            } finally {
+                HttpConnectionPool.release(httpResponse);
+            }
+        });
+    }
+
+    /**
+     * Issue a simple REST GET without waiting for the response, see restDoExtendedAsync
+     * @param serviceUrl local path info to add to baseUrl
+     * @return the future answer
+     */
+    public CompletableFuture<String> restGetAsync (String serviceUrl) {
+        return restDoAsync(new HttpGet(baseUrl + serviceUrl));
+    }
+
     public int getLastStatus() {
         return lastStatus;
     }
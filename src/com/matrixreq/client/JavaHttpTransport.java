@@ -0,0 +1,393 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.client;
+
+import com.matrixreq.lib.LoggerConfig;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.entity.DeflateDecompressingEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.cookie.CookieOrigin;
+import org.apache.http.cookie.CookieSpec;
+import org.apache.http.cookie.MalformedCookieException;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.impl.cookie.DefaultCookieSpec;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+
+/**
+ * A transport on java.net.http.HttpClient. It speaks HTTP/2 when the server does (ALPN over https, upgrade over
+ * http) and falls back to HTTP/1.1 otherwise. With HTTP/2 all the requests to a server, even many in parallel, share a
+ * single connection, and executeAsync doesn't hold a thread while waiting for the response.
+ *
+ * What Apache HttpClient did for GenericRestClient is done here: gzip and deflate responses are decoded, the cookies
+ * of the client's cookie store are sent and updated, redirects are followed, and the requests are retried after a
+ * network error following a RetryPolicy. Small bodies are sent from memory and can be retried, big or unknown size
+ * ones are streamed from the content of their entity, or from a temp file when the entity can only write itself out
+ * (compressed...). No thread is started for a body. The retries on a status (429, 503...) are done by GenericRestClient, whatever the transport.
+ */
+public class JavaHttpTransport implements RestTransport {
+
+    // bodies up to this size are copied in memory, the bigger ones are streamed
+    public static final int MAX_BUFFERED_BODY = 64 * 1024;
+    // headers set by java.net.http itself, it refuses them in a request
+    private static final Set<String> RESTRICTED_HEADERS = new HashSet<>(Arrays.asList(
+        "connection", "content-length", "expect", "host", "upgrade", "keep-alive", "transfer-encoding"));
+    private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    private final HttpClient client;
+    private final Duration timeout;
+    private final RetryPolicy retryPolicy;
+
+    /**
+     * @param timeoutInSeconds for the connection, and for the response headers of each request
+     */
+    public JavaHttpTransport(int timeoutInSeconds) {
+        this(timeoutInSeconds, 0);
+    }
+
+    /**
+     * @param timeoutInSeconds for the connection, and for the response headers of each request
+     * @param retry number of retries after a network error
+     */
+    public JavaHttpTransport(int timeoutInSeconds, int retry) {
+        this.timeout = Duration.ofSeconds(timeoutInSeconds);
+        this.retryPolicy = retry > 0 ? new RetryPolicy(retry) : null;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(timeout)
+                .build();
+    }
+
+    @Override
+    public CloseableHttpResponse execute(HttpUriRequest request, HttpClientContext context) throws IOException {
+        List<Path> spooled = new ArrayList<>();
+        try {
+            return send(request, toHttpRequest(request, context, spooled), isReplayable(request), context);
+        } finally {
+            deleteQuietly(spooled);
+        }
+    }
+
+    private CloseableHttpResponse send(HttpUriRequest request, HttpRequest httpRequest, boolean replayable,
+            HttpClientContext context) throws IOException {
+        for (int retry = 1; ; retry++) {
+            HttpResponse<InputStream> response = null;
+            Throwable error = null;
+            try {
+                response = client.send(httpRequest, HttpResponse.BodyHandlers.ofInputStream());
+            } catch (IOException ex) {
+                error = ex;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for " + request.getURI());
+            }
+            // a thread that must not wait leaves the retry to its caller
+            long delay = RetryPolicy.isWaitingAllowed() ? retryDelay(request, replayable, retry, error) : -1;
+            if (delay < 0) {
+                if (error != null)
+                    throw (IOException) error;
+                return toResponse(response, request, context);
+            }
+            closeQuietly(response);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted before retrying " + request.getURI());
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<CloseableHttpResponse> executeAsync(HttpUriRequest request, HttpClientContext context) {
+        List<Path> spooled = new ArrayList<>();
+        try {
+            return sendAsync(request, toHttpRequest(request, context, spooled), isReplayable(request), context, 1)
+                .whenComplete((response, error) -> deleteQuietly(spooled));
+        } catch (IOException | RuntimeException ex) {
+            deleteQuietly(spooled);
+            CompletableFuture<CloseableHttpResponse> ret = new CompletableFuture<>();
+            ret.completeExceptionally(ex);
+            return ret;
+        }
+    }
+
+    private CompletableFuture<CloseableHttpResponse> sendAsync(HttpUriRequest request, HttpRequest httpRequest,
+            boolean replayable, HttpClientContext context, int retry) {
+        return client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofInputStream())
+            .handle((response, error) -> {
+                Throwable cause = error instanceof CompletionException || error instanceof ExecutionException
+                    ? error.getCause() : error;
+                long delay = retryDelay(request, replayable, retry, cause);
+                if (delay >= 0) {
+                    closeQuietly(response);
+                    return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS))
+                        .thenCompose(ignore -> sendAsync(request, httpRequest, replayable, context, retry + 1));
+                }
+                CompletableFuture<CloseableHttpResponse> ret = new CompletableFuture<>();
+                if (cause != null)
+                    ret.completeExceptionally(cause);
+                else
+                    ret.complete(toResponse(response, request, context));
+                return ret;
+            })
+            .thenCompose(future -> future);
+    }
+
+    /**
+     * @param error null if a response came
+     * @return the time to wait before sending the request again, -1 if it must not be retried
+     */
+    private long retryDelay(HttpUriRequest request, boolean replayable, int retry, Throwable error) {
+        if (retryPolicy == null || ! replayable || ! (error instanceof IOException))
+            return -1;
+        String method = request.getMethod();
+        boolean sent = ! (error instanceof ConnectException || error instanceof HttpConnectTimeoutException);
+        if (! retryPolicy.shouldRetryError(retry, method, sent))
+            return -1;
+        long delay = retryPolicy.backoffMillis(retry);
+        LoggerConfig.getLogger().warn("{} {} failed ({}), retry {} in {} ms", method, request.getURI(), error, retry, delay);
+        return delay;
+    }
+
+    private static boolean isReplayable(HttpUriRequest request) {
+        if (! (request instanceof HttpEntityEnclosingRequest))
+            return true;
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        return entity == null || entity.isRepeatable();
+    }
+
+    /**
+     * @param spooled gets the temp files holding the body, to delete once the request is done
+     */
+    private HttpRequest toHttpRequest(HttpUriRequest request, HttpClientContext context, List<Path> spooled) throws IOException {
+        URI uri = request.getURI();
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(timeout);
+        for (Header header : request.getAllHeaders())
+            if (! RESTRICTED_HEADERS.contains(header.getName().toLowerCase(Locale.ROOT)))
+                builder.header(header.getName(), header.getValue());
+        // java.net.http doesn't ask for compressed responses by itself
+        if (request.getFirstHeader("Accept-Encoding") == null)
+            builder.header("Accept-Encoding", "gzip,deflate");
+        CookieStore cookieStore = context != null ? context.getCookieStore() : null;
+        if (cookieStore != null) {
+            CookieOrigin origin = cookieOrigin(uri);
+            CookieSpec spec = new DefaultCookieSpec();
+            List<Cookie> cookies = new ArrayList<>();
+            Date now = new Date();
+            for (Cookie cookie : cookieStore.getCookies())
+                if (! cookie.isExpired(now) && spec.match(cookie, origin))
+                    cookies.add(cookie);
+            if (! cookies.isEmpty())
+                for (Header header : spec.formatCookies(cookies))
+                    builder.header(header.getName(), header.getValue());
+        }
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.noBody();
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                if (entity.getContentType() != null && request.getFirstHeader("Content-Type") == null)
+                    builder.header("Content-Type", entity.getContentType().getValue());
+                if (entity.getContentEncoding() != null && request.getFirstHeader("Content-Encoding") == null)
+                    builder.header("Content-Encoding", entity.getContentEncoding().getValue());
+                body = toBodyPublisher(entity, spooled);
+            }
+        }
+        return builder.method(request.getMethod(), body).build();
+    }
+
+    private static HttpRequest.BodyPublisher toBodyPublisher(HttpEntity entity, List<Path> spooled) throws IOException {
+        long length = entity.getContentLength();
+        if (entity.isRepeatable() && length >= 0 && length <= MAX_BUFFERED_BODY) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) length);
+            entity.writeTo(buffer);
+            return HttpRequest.BodyPublishers.ofByteArray(buffer.toByteArray());
+        }
+        if (hasContent(entity)) {
+            // the client reads the content of the entity itself, a retry asks the entity for it again
+            HttpRequest.BodyPublisher streamed = HttpRequest.BodyPublishers.ofInputStream(() -> {
+                try {
+                    return entity.getContent();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            return length >= 0 ? HttpRequest.BodyPublishers.fromPublisher(streamed, length) : streamed;
+        }
+        // an entity that can only write itself out (compressed, multipart...) is written to a temp file first
+        Path file = Files.createTempFile("http-body", ".tmp");
+        spooled.add(file);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            entity.writeTo(out);
+        }
+        return HttpRequest.BodyPublishers.ofFile(file);
+    }
+
+    /**
+     * @return true if getContent gives the body as it must be sent
+     */
+    private static boolean hasContent(HttpEntity entity) {
+        // the content of GzipCompressingEntity is only compressed by writeTo
+        if (entity instanceof GzipCompressingEntity)
+            return false;
+        if (! entity.isRepeatable())
+            return entity.isStreaming();
+        try (InputStream in = entity.getContent()) {
+            return in != null;
+        } catch (IOException | UnsupportedOperationException ex) {
+            return false;
+        }
+    }
+
+    private static void deleteQuietly(List<Path> files) {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    private CloseableHttpResponse toResponse(HttpResponse<InputStream> response, HttpUriRequest request, HttpClientContext context) {
+        int status = response.statusCode();
+        ProtocolVersion version = response.version() == HttpClient.Version.HTTP_2 ? HTTP_2 : HttpVersion.HTTP_1_1;
+        Response ret = new Response(version, status, EnglishReasonPhraseCatalog.INSTANCE.getReason(status, Locale.ENGLISH), response.body());
+        response.headers().map().forEach((name, values) -> {
+            // the pseudo headers of HTTP/2 aren't headers for Apache
+            if (! name.startsWith(":"))
+                for (String value : values)
+                    ret.addHeader(name, value);
+        });
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(response.body());
+        entity.setContentLength(response.headers().firstValueAsLong("Content-Length").orElse(-1));
+        response.headers().firstValue("Content-Type").ifPresent(entity::setContentType);
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("").toLowerCase(Locale.ROOT);
+        if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+            ret.setEntity(new GzipDecompressingEntity(entity));
+        } else if ("deflate".equals(encoding)) {
+            ret.setEntity(new DeflateDecompressingEntity(entity));
+        } else {
+            entity.setContentEncoding(encoding.isEmpty() ? null : encoding);
+            ret.setEntity(entity);
+        }
+        CookieStore cookieStore = context != null ? context.getCookieStore() : null;
+        if (cookieStore != null)
+            storeCookies(response, cookieStore);
+        return ret;
+    }
+
+    private static void storeCookies(HttpResponse<InputStream> response, CookieStore cookieStore) {
+        // the cookies are for the url that answered, after the redirects
+        CookieOrigin origin = cookieOrigin(response.uri());
+        CookieSpec spec = new DefaultCookieSpec();
+        for (String value : response.headers().allValues("Set-Cookie")) {
+            try {
+                for (Cookie cookie : spec.parse(new BasicHeader("Set-Cookie", value), origin)) {
+                    try {
+                        spec.validate(cookie, origin);
+                        cookieStore.addCookie(cookie);
+                    } catch (MalformedCookieException ex) {
+                        LoggerConfig.getLogger().debug("Cookie rejected: {}", value);
+                    }
+                }
+            } catch (MalformedCookieException ex) {
+                LoggerConfig.getLogger().debug("Cookie rejected: {}", value);
+            }
+        }
+    }
+
+    private static CookieOrigin cookieOrigin(URI uri) {
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        int port = uri.getPort() >= 0 ? uri.getPort() : secure ? 443 : 80;
+        String path = uri.getPath() == null || uri.getPath().isEmpty() ? "/" : uri.getPath();
+        return new CookieOrigin(uri.getHost(), port, path, secure);
+    }
+
+    private static void closeQuietly(HttpResponse<InputStream> response) {
+        if (response == null)
+            return;
+        try {
+            response.body().close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Nothing to close: the connections of java.net.http close by themselves once idle
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * A response of java.net.http seen as an Apache one. Closing it closes the body stream, which gives the stream of
+     * the HTTP/2 connection (or the HTTP/1.1 connection) back
+     */
+    private static class Response extends BasicHttpResponse implements CloseableHttpResponse {
+        private final InputStream body;
+
+        Response(ProtocolVersion version, int status, String reason, InputStream body) {
+            super(version, status, reason);
+            this.body = body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+}
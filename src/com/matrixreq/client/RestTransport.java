@@ -0,0 +1,59 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+
+/**
+ * Sends the requests of a GenericRestClient. The requests and responses are the ones of Apache HttpClient whatever the
+ * implementation, so the rest of the client doesn't depend on how they travel.
+ *
+ * A transport can be shared by several clients and used from several threads.
+ */
+public interface RestTransport extends Closeable {
+
+    /**
+     * Sends a request and waits for the response
+     * @param request
+     * @param context holds the cookie store of the client, if any
+     * @return the response, to give back with HttpConnectionPool.release once read
+     * @throws IOException
+     */
+    CloseableHttpResponse execute(HttpUriRequest request, HttpClientContext context) throws IOException;
+
+    /**
+     * Sends a request without waiting for the response. By default the request is sent on the calling thread, a
+     * transport that can do better overrides it
+     * @param request
+     * @param context holds the cookie store of the client, if any
+     * @return the future response, to give back with HttpConnectionPool.release once read
+     */
+    default CompletableFuture<CloseableHttpResponse> executeAsync(HttpUriRequest request, HttpClientContext context) {
+        CompletableFuture<CloseableHttpResponse> ret = new CompletableFuture<>();
+        try {
+            ret.complete(execute(request, context));
+        } catch (IOException | RuntimeException ex) {
+            ret.completeExceptionally(ex);
+        }
+        return ret;
+    }
+}
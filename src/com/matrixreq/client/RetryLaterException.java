@@ -0,0 +1,51 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+
+package com.matrixreq.client;
+
+import com.matrixreq.lib.MatrixLibException;
+
+/**
+ * A request answered with a status worth retrying (429, 503...) on a thread that must not wait for the retry, see
+ * RetryPolicy.setWaitingAllowed. The caller sends it again later, with what the server asked
+ */
+public class RetryLaterException extends MatrixLibException {
+
+    private static final long serialVersionUID = 1L;
+    private final int status;
+    private final String retryAfter;
+
+    /**
+     * @param message
+     * @param status status of the response
+     * @param retryAfter value of its Retry-After header, may be null
+     */
+    public RetryLaterException(String message, int status, String retryAfter) {
+        super(message);
+        this.status = status;
+        this.retryAfter = retryAfter;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.client;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * When and how long to wait before retrying a request.
+ *
+ * The wait is a capped exponential backoff with full jitter: before retry n it's a random time between 0 and
+ * min(maxDelay, baseDelay * 2^(n-1)), so clients failing together don't retry together. A Retry-After given by the
+ * server is used instead when there's one.
+ *
+ * A request that may have reached the server is only retried if its method is idempotent: a POST creating an item is
+ * never sent twice, unless the connection failed before the request was sent. Even a 429 or 503 doesn't prove the
+ * server did nothing with it, so a caller knowing its POST can be sent twice (a search...) has to say so.
+ */
+public class RetryPolicy {
+
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 200;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+    // false on the threads that must not wait for a retry, see setWaitingAllowed
+    private static final ThreadLocal<Boolean> WAITING_ALLOWED = ThreadLocal.withInitial(() -> true);
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryPolicy(int maxRetries) {
+        this(maxRetries, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * @param maxRetries number of retries after the first attempt
+     * @param baseDelayMillis maximum wait before the first retry
+     * @param maxDelayMillis the wait never goes above, also caps Retry-After
+     */
+    public RetryPolicy(int maxRetries, long baseDelayMillis, long maxDelayMillis) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Says if the current thread may sleep before a retry. The threads of a pool that reschedules the whole call on a
+     * timer turn it off: the transports then don't retry, and GenericRestClient throws a RetryLaterException instead
+     * of waiting
+     * @param allowed
+     */
+    public static void setWaitingAllowed(boolean allowed) {
+        if (allowed)
+            WAITING_ALLOWED.remove();
+        else
+            WAITING_ALLOWED.set(false);
+    }
+
+    /**
+     * @return false if the current thread must not sleep before a retry
+     */
+    public static boolean isWaitingAllowed() {
+        return WAITING_ALLOWED.get();
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     * @return the time to wait before this retry
+     */
+    public long backoffMillis(int retry) {
+        int shift = Math.min(Math.max(0, retry - 1), 30);
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << shift);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     * @param retryAfter value of the Retry-After header, may be null
+     * @return the time to wait before this retry: what the server asked if it did, the backoff otherwise
+     */
+    public long delayMillis(int retry, String retryAfter) {
+        long asked = parseRetryAfter(retryAfter);
+        if (asked >= 0)
+            return Math.min(asked, maxDelayMillis);
+        return backoffMillis(retry);
+    }
+
+    /**
+     * @param retryAfter delay in seconds or http date
+     * @return the delay in ms, -1 if there's none or it can't be read
+     */
+    public static long parseRetryAfter(String retryAfter) {
+        if (StringUtils.isBlank(retryAfter))
+            return -1;
+        String value = retryAfter.trim();
+        if (StringUtils.isNumeric(value)) {
+            try {
+                return Long.parseLong(value) * 1000;
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+        Date date = DateUtils.parseDate(value);
+        if (date == null)
+            return -1;
+        return Math.max(0, date.getTime() - System.currentTimeMillis());
+    }
+
+    /**
+     * @param method HTTP method
+     * @return true if sending the request twice has the same effect as sending it once
+     */
+    public static boolean isIdempotent(String method) {
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "OPTIONS":
+            case "PUT":
+            case "DELETE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param status
+     * @return true for the statuses worth retrying: throttled, bad gateway, unavailable, gateway timeout
+     */
+    public static boolean isRetryableStatus(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     * @param method HTTP method of the request
+     * @param status status of the response
+     * @return true if the request can be sent again after this response: only when its method is idempotent
+     */
+    public boolean shouldRetryStatus(int retry, String method, int status) {
+        return shouldRetryStatus(retry, method, status, false);
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     * @param method HTTP method of the request
+     * @param status status of the response
+     * @param resendable true if the caller knows the request has the same effect if sent twice, whatever its method
+     * @return true if the request can be sent again after this response
+     */
+    public boolean shouldRetryStatus(int retry, String method, int status, boolean resendable) {
+        if (retry > maxRetries || ! isRetryableStatus(status))
+            return false;
+        return resendable || isIdempotent(method);
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     * @param method HTTP method of the request
+     * @param requestSent false if the connection failed before the request was sent
+     * @return true if the request can be sent again after an I/O error
+     */
+    public boolean shouldRetryError(int retry, String method, boolean requestSent) {
+        if (retry > maxRetries)
+            return false;
+        return isIdempotent(method) || ! requestSent;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.client.matrixrestclient;
+
+import com.google.gson.Gson;
+import com.matrixreq.client.matrixrestclient.struct.ItemAndValue;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Items read by a MatrixRestClient, kept for the next reads. Set with MatrixRestClient.setItemCache.
+ *
+ * The cache holds at most maxItems items, the least recently read ones are dropped first. An item is served for
+ * maxAge after it was read or revalidated, then read again from the server. MatrixRestClient.revalidateItemCache asks
+ * the versions of all the items of a project in one request and keeps the cached items whose maxVersion didn't change.
+ *
+ * The client removes an item from the cache when it changes it (update, labels, links, move...), with its folder and
+ * linked items when it's deleted, and the whole project when it changes many items at once (import, folder delete,
+ * fields, categories). A read that started before a change isn't cached, so it can't bring back the old item. A change
+ * based on the item read (labels) reads it from the server, not from the cache.
+ *
+ * The items are kept as JSON: each get returns a new copy that the caller can change.
+ */
+public class ItemCache {
+
+    public static final int DEFAULT_MAX_ITEMS = 1000;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60 * 1000L;
+
+    private static class Entry {
+        final String json;
+        final int maxVersion;
+        final String modDate;
+        long validated = System.currentTimeMillis();
+
+        Entry(String json, int maxVersion, String modDate) {
+            this.json = json;
+            this.maxVersion = maxVersion;
+            this.modDate = modDate;
+        }
+    }
+
+    private final int maxItems;
+    private final long maxAgeMillis;
+    private final Gson gson = new Gson();
+    private final LinkedHashMap<String, Entry> entries;
+    // changes at each invalidation, a read started before it isn't cached
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    public ItemCache() {
+        this(DEFAULT_MAX_ITEMS, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param maxItems number of items kept
+     * @param maxAgeMillis time an item is served without asking the server
+     */
+    public ItemCache(int maxItems, long maxAgeMillis) {
+        this.maxItems = Math.max(1, maxItems);
+        this.maxAgeMillis = maxAgeMillis;
+        // in access order, the eldest is the least recently read
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ItemCache.this.maxItems;
+            }
+        };
+    }
+
+    private static String key(String project, String itemRef) {
+        return project + "/" + itemRef;
+    }
+
+    /**
+     * @param project
+     * @param itemRef
+     * @return a copy of the cached item, null if it isn't cached or too old
+     */
+    public synchronized ItemAndValue get(String project, String itemRef) {
+        String key = key(project, itemRef);
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.validated > maxAgeMillis) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return gson.fromJson(entry.json, ItemAndValue.class);
+    }
+
+    /**
+     * @param project
+     * @param itemRef
+     * @return a copy of the cached item even if too old, null if it isn't cached. Not counted as a read
+     */
+    public synchronized ItemAndValue peek(String project, String itemRef) {
+        Entry entry = entries.get(key(project, itemRef));
+        return entry != null ? gson.fromJson(entry.json, ItemAndValue.class) : null;
+    }
+
+    /**
+     * @return the value to give to put, read before asking the server
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches an item read from the server. Ignored if the item changed since the read started, or if a more recent
+     * version is cached already
+     * @param project
+     * @param itemRef
+     * @param item
+     * @param generation the value of getGeneration before the read
+     */
+    public synchronized void put(String project, String itemRef, ItemAndValue item, long generation) {
+        if (item == null || generation != this.generation)
+            return;
+        String key = key(project, itemRef);
+        Entry cached = entries.get(key);
+        if (cached != null && cached.maxVersion > item.maxVersion)
+            return;
+        if (cached != null && cached.maxVersion == item.maxVersion && cached.modDate != null && cached.modDate.equals(item.modDate)) {
+            // same item, it's only confirmed
+            cached.validated = System.currentTimeMillis();
+            return;
+        }
+        entries.put(key, new Entry(gson.toJson(item), item.maxVersion, item.modDate));
+    }
+
+    /**
+     * Keeps the items of a project whose version is still the one given, for another maxAge, and drops the others
+     * @param project
+     * @param versions the current maxVersion of the items, by item ref
+     * @return the number of items kept
+     */
+    public synchronized int revalidate(String project, Map<String, Integer> versions) {
+        String prefix = project + "/";
+        long now = System.currentTimeMillis();
+        int kept = 0;
+        for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Entry> entry = it.next();
+            if (! entry.getKey().startsWith(prefix))
+                continue;
+            Integer version = versions.get(entry.getKey().substring(prefix.length()));
+            if (version != null && version == entry.getValue().maxVersion) {
+                entry.getValue().validated = now;
+                kept++;
+            } else {
+                it.remove();
+            }
+        }
+        return kept;
+    }
+
+    public synchronized void invalidate(String project, String itemRef) {
+        generation++;
+        entries.remove(key(project, itemRef));
+    }
+
+    public synchronized void invalidateProject(String project) {
+        generation++;
+        String prefix = project + "/";
+        entries.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
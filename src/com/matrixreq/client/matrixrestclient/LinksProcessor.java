@@ -22,15 +22,24 @@ import com.matrixreq.client.GenericRestClient;
 import com.matrixreq.client.matrixrestclient.struct.ExternalLink;
 import com.matrixreq.client.matrixrestclient.struct.ExternalLinks;
 import com.matrixreq.client.matrixrestclient.struct.MatrixItem;
+import com.matrixreq.client.matrixrestclient.struct.NewExternalLink;
 import com.matrixreq.client.matrixrestclient.struct.PayloadForWfgw;
 import com.matrixreq.client.matrixrestclient.struct.PluginSettings;
 import com.matrixreq.client.matrixrestclient.struct.ProjectDetails;
+import com.matrixreq.lib.HttpConnectionPool;
 import com.matrixreq.lib.MatrixLibException;
 import com.matrixreq.lib.StringUtil;
+import com.matrixreq.lib.ThreadUtil;
+import java.io.IOException;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.util.EntityUtils;
@@ -40,21 +49,48 @@ import org.apache.http.util.EntityUtils;
  * @author Yves
  */
 public class LinksProcessor {
+    // batches of addLinks sent at the same time
+    public static final int DEFAULT_PARALLELISM = 4;
+    // links of one item and plugin sent in a single CreateLinks request
+    public static final int MAX_LINKS_PER_REQUEST = 200;
+
     String instanceUrl;
     String token;
+    private GenericRestClient wfgwApi;
     
     public LinksProcessor(String instanceUrl, String token, String domainName) {
         this.instanceUrl = MatrixRestClient.fixInstance(instanceUrl.replace("/rest/1", ""), domainName);
         this.token = token;
     }
     
-    private ArrayList<Integer> plugins;
-    private HashMap<String, ArrayList<ExternalLink>> itemMap;
+    private static final Type LINKS_TYPE = new TypeToken<List<ExternalLinks>>(){}.getType();
+
+    private final Gson gson = new Gson();
+    private ArrayList<Integer> plugins = new ArrayList<>();
+    // Matrix item -> its external links, and external issue id -> the Matrix items linked to it, sorted
+    private HashMap<String, ArrayList<ExternalLink>> itemMap = new HashMap<>();
+    private HashMap<String, TreeSet<String>> externalMap = new HashMap<>();
     
+    /**
+     * Reads the links of all the Jira plugins of a project. The plugins are asked in parallel. The new links replace
+     * the index at once: the getters see the previous links or the new ones, never a part of them
+     * @param project
+     * @throws MatrixLibException 
+     */
     public void getAllLinks(String project) throws MatrixLibException {
-        plugins = new ArrayList<>();
-        itemMap = new HashMap<>();
-        
+        ArrayList<Integer> projectPlugins = new ArrayList<>();
+        HashMap<String, ArrayList<ExternalLink>> items = new HashMap<>();
+        HashMap<String, TreeSet<String>> externals = new HashMap<>();
+        readAllLinks(project, projectPlugins, items, externals);
+        synchronized (this) {
+            plugins = projectPlugins;
+            itemMap = items;
+            externalMap = externals;
+        }
+    }
+
+    private void readAllLinks(String project, ArrayList<Integer> projectPlugins, HashMap<String, ArrayList<ExternalLink>> items,
+            HashMap<String, TreeSet<String>> externals) throws MatrixLibException {
         // We ask the normal api for project deta, to have the list of plugins
         String restUrl = instanceUrl;
         if (! restUrl.endsWith("/rest/1"))
@@ -65,15 +101,17 @@ public class LinksProcessor {
         if (projectDetails == null || projectDetails.getPluginSettingsList() == null)
             return;
         for (PluginSettings sett: projectDetails.getPluginSettingsList())
-            if (! plugins.contains(sett.pluginId)) {
+            if (! projectPlugins.contains(sett.pluginId)) {
                 switch (sett.pluginId) {
                     case 211:
                     case 212:
                         // We only accept Jira Cloud and Jira Server plugins
-                        plugins.add(sett.pluginId);
+                        projectPlugins.add(sett.pluginId);
                         break;
                 }
             }
+        if (projectPlugins.isEmpty())
+            return;
         
         // Now we go through the wfgw 
         // ttps://matrixspecs.matrixreq.com/rest/2/wfgw/?payload=%7B%
@@ -84,29 +122,51 @@ public class LinksProcessor {
             externalUrl = externalUrl + "/rest/2";
         GenericRestClient externalApi = new GenericRestClient(externalUrl);
         externalApi.addHeader("Authorization", "Token " + token);        
-        for (Integer plugin: plugins) {
-            Payload payload = new Payload(plugin, project);
-            Gson gson = new Gson();
-            String api = "/wfgw/?payload=" + StringUtil.urlEncode(gson.toJson(payload));
-            String allLinks = externalApi.restGet(api);
-            List<ExternalLinks> list = gson.fromJson(allLinks, new TypeToken<List<ExternalLinks>>(){}.getType());            
-            if (list != null && ! list.isEmpty()) 
-                addAll(list, plugin);
+        ExecutorService executor = ThreadUtil.newDaemonPool(Math.min(DEFAULT_PARALLELISM, projectPlugins.size()), "links-processor");
+        try {
+            List<CompletableFuture<List<ExternalLinks>>> answers = new ArrayList<>();
+            for (Integer plugin: projectPlugins) {
+                CompletableFuture<List<ExternalLinks>> answer = new CompletableFuture<>();
+                executor.execute(() -> {
+                    try {
+                        String api = "/wfgw/?payload=" + StringUtil.urlEncode(gson.toJson(new Payload(plugin, project)));
+                        answer.complete(gson.fromJson(externalApi.restGet(api), LINKS_TYPE));
+                    } catch (Exception ex) {
+                        answer.completeExceptionally(ex);
+                    }
+                });
+                answers.add(answer);
+            }
+            // indexed in the order of the plugins, whatever the order of the answers
+            for (int i = 0; i < projectPlugins.size(); i++) {
+                List<ExternalLinks> list = ThreadUtil.waitFor(answers.get(i), "the external links");
+                if (list != null && ! list.isEmpty()) 
+                    addAll(list, projectPlugins.get(i), items, externals);
+            }
+        } finally {
+            executor.shutdown();
         }
     }
 
-    private void addAll(List<ExternalLinks> list, int plugin) {
+    private static void addAll(List<ExternalLinks> list, int plugin, HashMap<String, ArrayList<ExternalLink>> items,
+            HashMap<String, TreeSet<String>> externals) {
         for (ExternalLinks ext: list) {
+            if (ext.links == null)
+                continue;
             String matrixItem = ext.matrixItem.matrixItem;
-            ArrayList<ExternalLink> current = itemMap.get(matrixItem);
-            if (current == null)
-                current = new ArrayList<>();
+            items.computeIfAbsent(matrixItem, k -> new ArrayList<>());
             for (ExternalLink oneLink: ext.links)
-                if (oneLink.plugin == plugin)
-                    current.add(oneLink);
-            itemMap.put(matrixItem, current);
+                if (oneLink.plugin != null && oneLink.plugin == plugin)
+                    index(items, externals, matrixItem, oneLink);
         }
     }
+
+    private static void index(HashMap<String, ArrayList<ExternalLink>> items, HashMap<String, TreeSet<String>> externals,
+            String matrixItem, ExternalLink link) {
+        items.computeIfAbsent(matrixItem, k -> new ArrayList<>()).add(link);
+        if (link.externalItemId != null)
+            externals.computeIfAbsent(link.externalItemId, k -> new TreeSet<>()).add(matrixItem);
+    }
     
     @SuppressWarnings("unused")
     private class PayloadProject {
@@ -128,50 +188,150 @@ public class LinksProcessor {
         }
     }
     
-    public ArrayList<ExternalLink> getLinksForMatrixItem(String matrixItem) {
+    public synchronized ArrayList<ExternalLink> getLinksForMatrixItem(String matrixItem) {
         return itemMap.get(matrixItem);
     }
     
-    public List<String> getLinksForExternalItem(String externalItem) {
-        ArrayList<String> ret = new ArrayList<>();
-        for (String matrixItem: itemMap.keySet()) {
-            boolean keep = false;
-            ArrayList<ExternalLink> externals = itemMap.get(matrixItem);
-            if (externals != null)
-                for (ExternalLink external: externals)
-                    if (externalItem.equals(external.externalItemId))
-                        keep = true;
-            if (keep)
-                ret.add(matrixItem);
-        }
-        Collections.sort(ret);
-        return ret;
+    /**
+     * @param externalItem id of the external issue, like MATRIX-1234
+     * @return the Matrix items linked to it, sorted
+     */
+    public synchronized List<String> getLinksForExternalItem(String externalItem) {
+        TreeSet<String> matrixItems = externalMap.get(externalItem);
+        return matrixItems != null ? new ArrayList<>(matrixItems) : new ArrayList<>();
     }
     
     public void addLink(String project, String matrixRef, int pluginId, String externalId, String externalTitle, String externalUrl) throws Exception {
-        ExternalLink ext = new ExternalLink();
-        ext.externalItemId = externalId;
-        ext.externalItemTitle = externalTitle;
-        ext.externalItemUrl = externalUrl;
-        ext.plugin = pluginId;
+        PayloadForWfgw links = createLinksPayload(project, matrixRef, pluginId);
+        links.externalItems.add(externalLink(new NewExternalLink(matrixRef, pluginId, externalId, externalTitle, externalUrl)));
+        sendCreateLinks(links, false);
+    }
+
+    /**
+     * Creates many links: the links of the same Matrix item and plugin go in one CreateLinks request, and up to
+     * DEFAULT_PARALLELISM requests are sent at the same time. The links created are added to the index of getAllLinks
+     * @param project
+     * @param links
+     * @return the number of links created
+     * @throws MatrixLibException if a request failed, once all the others are done
+     */
+    public int addLinks(String project, List<NewExternalLink> links) throws MatrixLibException {
+        // grouped per item and plugin, in the order of the links
+        Map<String, List<PayloadForWfgw>> groups = new LinkedHashMap<>();
+        for (NewExternalLink link: links) {
+            List<PayloadForWfgw> group = groups.computeIfAbsent(link.matrixItem + "|" + link.pluginId, k -> new ArrayList<>());
+            if (group.isEmpty() || group.get(group.size() - 1).externalItems.size() >= MAX_LINKS_PER_REQUEST)
+                group.add(createLinksPayload(project, link.matrixItem, link.pluginId));
+            group.get(group.size() - 1).externalItems.add(externalLink(link));
+        }
+        List<PayloadForWfgw> batches = new ArrayList<>();
+        for (List<PayloadForWfgw> group: groups.values())
+            batches.addAll(group);
+        if (batches.isEmpty())
+            return 0;
+
+        ExecutorService executor = ThreadUtil.newDaemonPool(Math.min(DEFAULT_PARALLELISM, batches.size()), "links-processor");
+        int created = 0;
+        int failed = 0;
+        MatrixLibException firstError = null;
+        try {
+            List<CompletableFuture<Integer>> answers = new ArrayList<>();
+            for (PayloadForWfgw batch: batches) {
+                CompletableFuture<Integer> answer = new CompletableFuture<>();
+                executor.execute(() -> {
+                    try {
+                        sendCreateLinks(batch, true);
+                        answer.complete(batch.externalItems.size());
+                    } catch (Exception ex) {
+                        answer.completeExceptionally(ex);
+                    }
+                });
+                answers.add(answer);
+            }
+            for (CompletableFuture<Integer> answer: answers) {
+                try {
+                    created += ThreadUtil.waitFor(answer, "the external links");
+                } catch (MatrixLibException ex) {
+                    if (Thread.currentThread().isInterrupted())
+                        throw ex;
+                    failed++;
+                    if (firstError == null)
+                        firstError = ex;
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        if (firstError != null)
+            throw new MatrixLibException(firstError, failed + " of " + batches.size() + " CreateLinks requests failed, " + created + " links created");
+        return created;
+    }
+
+    private PayloadForWfgw createLinksPayload(String project, String matrixRef, int pluginId) {
         PayloadForWfgw links = new PayloadForWfgw();
         links.externalItems = new ArrayList<>();
-        links.externalItems.add(ext);
         links.matrixItem = new MatrixItem();
         links.matrixItem.project = project;
         links.matrixItem.matrixItem = matrixRef;
         links.action = "CreateLinks";
         links.pluginId = pluginId;
-        Gson gson = new Gson();
-        String payloadS = gson.toJson(links);
-        GenericRestClient externalApi = new GenericRestClient(instanceUrl + "/rest/2/wfgw");
-        externalApi.addHeader("Authorization", "Token " + token);        
+        return links;
+    }
+
+    private static ExternalLink externalLink(NewExternalLink link) {
+        ExternalLink ext = new ExternalLink();
+        ext.externalItemId = link.externalItemId;
+        ext.externalItemTitle = link.externalItemTitle;
+        ext.externalItemUrl = link.externalItemUrl;
+        ext.plugin = link.pluginId;
+        return ext;
+    }
+
+    /**
+     * @return the client of the wfgw api, created once and shared by all the requests. Its connections come from
+     * HttpConnectionPool
+     */
+    private synchronized GenericRestClient getWfgwApi() {
+        if (wfgwApi == null) {
+            wfgwApi = new GenericRestClient(instanceUrl + "/rest/2/wfgw");
+            wfgwApi.addHeader("Authorization", "Token " + token);
+        }
+        return wfgwApi;
+    }
+
+    /**
+     * Sends a CreateLinks payload and keeps the answer in ret, lastStatus and lastStatusMessage. The links created
+     * are added to the index
+     * @param links
+     * @param failOnError true to throw if the answer isn't 200
+     * @throws MatrixLibException if the request failed
+     */
+    private void sendCreateLinks(PayloadForWfgw links, boolean failOnError) throws MatrixLibException {
         ArrayList<NameValuePair> param = new ArrayList<>();
-        param = GenericRestClient.addParameter(param, "payload", payloadS);
-        CloseableHttpResponse httpResponse = externalApi.restPostExtended("/", param);
-        ret = EntityUtils.toString(httpResponse.getEntity(),"UTF-8");
-        lastStatus = httpResponse.getStatusLine().getStatusCode();
-        lastStatusMessage = httpResponse.getStatusLine().getReasonPhrase();
+        param = GenericRestClient.addParameter(param, "payload", gson.toJson(links));
+        CloseableHttpResponse httpResponse = getWfgwApi().restPostExtended("/", param);
+        String answer;
+        int status;
+        String statusMessage;
+        try {
+            answer = EntityUtils.toString(httpResponse.getEntity(),"UTF-8");
+            status = httpResponse.getStatusLine().getStatusCode();
+            statusMessage = httpResponse.getStatusLine().getReasonPhrase();
+        } catch (IOException ex) {
+            throw new MatrixLibException(ex, "Failed to read the answer of CreateLinks for " + links.matrixItem.matrixItem);
+        } finally {
+            HttpConnectionPool.release(httpResponse);
+        }
+        synchronized (this) {
+            ret = answer;
+            lastStatus = status;
+            lastStatusMessage = statusMessage;
+            if (status == 200)
+                for (ExternalLink link: links.externalItems)
+                    index(itemMap, externalMap, links.matrixItem.matrixItem, link);
+        }
+        if (status != 200 && failOnError)
+            throw new MatrixLibException("CreateLinks for " + links.matrixItem.matrixItem + " answered " + status + " " + statusMessage + ": " + answer);
     }
 
     public String ret;
@@ -21,6 +21,7 @@ import com.google.gson.reflect.TypeToken;
 import com.matrixreq.client.GenericRestClient;
 import com.matrixreq.client.matrixrestclient.struct.*;
 import com.matrixreq.lib.DateUtil;
+import com.matrixreq.lib.HttpConnectionPool;
 import com.matrixreq.lib.LoggerConfig;
 import com.matrixreq.lib.MatrixLibException;
 import com.matrixreq.lib.StringUtil;
@@ -28,16 +29,20 @@ import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import com.matrixreq.matrix.JobFileType;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
 
 /**
  *
@@ -45,6 +50,7 @@ import org.apache.http.util.EntityUtils;
  */
 public class MatrixRestClient extends GenericRestClient {
     private boolean silent = false;
+    private ItemCache itemCache = null;
     
     /**
      * Constructor
@@ -128,6 +134,79 @@ public class MatrixRestClient extends GenericRestClient {
     public void setSilent (boolean silent) {
         this.silent = silent;
     }
+
+    /**
+     * getItem reads through this cache, and the changes done by this client remove the items they change from it
+     * @param itemCache null (default) for no cache
+     */
+    public void setItemCache (ItemCache itemCache) {
+        this.itemCache = itemCache;
+    }
+
+    public ItemCache getItemCache() {
+        return itemCache;
+    }
+
+    /**
+     * Asks the versions of all the items of a project in one request, and keeps the cached items still at that
+     * version for another maxAge of the cache. The others are dropped
+     * @param project
+     * @return the number of cached items still valid
+     * @throws MatrixLibException
+     */
+    public int revalidateItemCache (String project) throws MatrixLibException {
+        ItemCache cache = itemCache;
+        if (cache == null)
+            return 0;
+        Map<String, Integer> versions = new HashMap<>();
+        addVersions(getFancyTree(project, null), versions);
+        return cache.revalidate(project, versions);
+    }
+
+    private void addVersions (List<FancyLeaf> leaves, Map<String, Integer> versions) {
+        if (leaves == null)
+            return;
+        for (FancyLeaf leaf : leaves) {
+            int version = NumberUtils.toInt(leaf.version, -1);
+            if (leaf.id != null && version >= 0)
+                versions.put(leaf.id, version);
+            addVersions(leaf.children, versions);
+        }
+    }
+
+    private void itemChanged (String project, String... itemRefs) {
+        ItemCache cache = itemCache;
+        if (cache != null)
+            for (String itemRef : itemRefs)
+                if (itemRef != null)
+                    cache.invalidate(project, itemRef);
+    }
+
+    /**
+     * A deleted or restored item also changes its folder and the items linked to it. They're known when the item is
+     * cached, otherwise the whole project is dropped
+     */
+    private void itemAndNeighboursChanged (String project, String itemRef) {
+        ItemCache cache = itemCache;
+        if (cache == null)
+            return;
+        ItemAndValue cached = cache.peek(project, itemRef);
+        if (cached == null || cached.folderRef == null) {
+            cache.invalidateProject(project);
+            return;
+        }
+        itemChanged(project, itemRef, cached.folderRef);
+        for (List<ItemLink> links : Arrays.asList(cached.upLinkList, cached.downLinkList))
+            if (links != null)
+                for (ItemLink link : links)
+                    itemChanged(project, link.itemRef);
+    }
+
+    private void projectChanged (String project) {
+        ItemCache cache = itemCache;
+        if (cache != null)
+            cache.invalidateProject(project);
+    }
     
     public GetAllCateg getAllCategory(String project) throws MatrixLibException {
         String s = restGet("/" + project + "/cat");
@@ -141,9 +220,8 @@ public class MatrixRestClient extends GenericRestClient {
     }
     
     public GetAllCateg getAllCategoryAsAdmin(String project) throws MatrixLibException {
-        String s = restGet("/" + project + "/cat?adminUI=1");
         try {
-            GetAllCateg allCateg = gson.fromJson(s, GetAllCateg.class);
+            GetAllCateg allCateg = restGetJson("/" + project + "/cat?adminUI=1", GetAllCateg.class);
             return allCateg;
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
@@ -158,9 +236,8 @@ public class MatrixRestClient extends GenericRestClient {
      * @throws MatrixLibException 
      */
     public CategoryAndItems getCategory (String project, String category) throws MatrixLibException {
-        String s = restGet("/" + project + "/cat/" + category);
         try {
-            CategoryAndItems categoryAndItems = gson.fromJson(s, CategoryAndItems.class);
+            CategoryAndItems categoryAndItems = restGetJson("/" + project + "/cat/" + category, CategoryAndItems.class);
             return categoryAndItems;
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
@@ -175,9 +252,29 @@ public class MatrixRestClient extends GenericRestClient {
      * @throws MatrixLibException 
      */
     public ItemAndValue getItem(String project, String item) throws MatrixLibException {
-        String s = restGet("/" + project + "/item/" + item);
+        ItemCache cache = itemCache;
+        if (cache != null) {
+            ItemAndValue cached = cache.get(project, item);
+            if (cached != null)
+                return cached;
+        }
+        return getItemFromServer(project, item);
+    }
+
+    /**
+     * Same as getItem, but always asks the server: for a read followed by a change of the item
+     * @param project
+     * @param item
+     * @return an ItemAndValue object
+     * @throws MatrixLibException 
+     */
+    public ItemAndValue getItemFromServer(String project, String item) throws MatrixLibException {
+        ItemCache cache = itemCache;
+        long generation = cache != null ? cache.getGeneration() : 0;
         try {
-            ItemAndValue itemStruct = gson.fromJson(s, ItemAndValue.class);
+            ItemAndValue itemStruct = restGetJson("/" + project + "/item/" + item, ItemAndValue.class);
+            if (cache != null)
+                cache.put(project, item, itemStruct, generation);
             return itemStruct;
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
@@ -194,9 +291,8 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public ItemAndValue getItemAtDate(String project, String item, String date) throws MatrixLibException {
         String action = "/" + project + "/item/" + item + "?atDate=" + StringUtil.urlEncode(date);
-        String s = restGet(action);
         try {
-            ItemAndValue itemStruct = gson.fromJson(s, ItemAndValue.class);
+            ItemAndValue itemStruct = restGetJson(action, ItemAndValue.class);
             return itemStruct;
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
@@ -211,9 +307,8 @@ public class MatrixRestClient extends GenericRestClient {
      * @throws MatrixLibException 
      */
     public ItemAndValueAndHistory getItemWithHistory(String project, String item) throws MatrixLibException {
-        String s = restGet("/" + project + "/item/" + item + "?history=1");
         try {
-            ItemAndValueAndHistory itemStruct = gson.fromJson(s, ItemAndValueAndHistory.class);
+            ItemAndValueAndHistory itemStruct = restGetJson("/" + project + "/item/" + item + "?history=1", ItemAndValueAndHistory.class);
             return itemStruct;
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
@@ -228,9 +323,8 @@ public class MatrixRestClient extends GenericRestClient {
      * @throws MatrixLibException 
      */
     public ItemAndValueAndChildren getItemAndChildren(String project, String item) throws MatrixLibException {
-        String s = restGet("/" + project + "/item/" + item + "?children=yes");
         try {
-            ItemAndValueAndChildren itemStruct = gson.fromJson(s, ItemAndValueAndChildren.class);
+            ItemAndValueAndChildren itemStruct = restGetJson("/" + project + "/item/" + item + "?children=yes", ItemAndValueAndChildren.class);
             return itemStruct;
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
@@ -247,9 +341,8 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public ItemAndValueAndChildren getItemAndChildrenOptions(String project, String item, String options) throws MatrixLibException {
         String action = "/" + project + "/item/" + item + "?children=yes&" + options;
-        String s = restGet(action);
         try {
-            ItemAndValueAndChildren itemStruct = gson.fromJson(s, ItemAndValueAndChildren.class);
+            ItemAndValueAndChildren itemStruct = restGetJson(action, ItemAndValueAndChildren.class);
             return itemStruct;
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
@@ -266,6 +359,7 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public String deleteItem(String project, String itemRef, String reason) throws MatrixLibException {
         String s = restDelete("/" + project + "/item/" + itemRef + "?reason=" + StringUtil.urlEncode(reason));
+        itemAndNeighboursChanged(project, itemRef);
         return s;
     }
 
@@ -291,6 +385,8 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public String deleteFolderEvenIfEmpty(String project, String folderRef, String reason) throws MatrixLibException {
         String s = restDelete("/" + project + "/item/" + folderRef + "?confirm=yes&reason=" + StringUtil.urlEncode(reason));
+        // all the items below are deleted too
+        projectChanged(project);
         return s;
     }
 
@@ -305,6 +401,7 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public String deleteLink(String project, String upItemRef, String downItemRef, String reason) throws MatrixLibException {
         String s = restDelete("/" + project + "/itemlink/" + upItemRef + "/" + downItemRef + "?reason=" + StringUtil.urlEncode(reason));
+        itemChanged(project, upItemRef, downItemRef);
         return s;
     }
 
@@ -319,6 +416,7 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public String deleteField(String project, String category, int id, String reason) throws MatrixLibException {
         String s = restDelete("/" + project + "/field/" + category + "?field=" + id + "&reason=" + StringUtil.urlEncode(reason));
+        projectChanged(project);
         return s;
     }
 
@@ -331,18 +429,16 @@ public class MatrixRestClient extends GenericRestClient {
      * @throws MatrixLibException 
      */
     public TrimNeedle findWithParameters(String project, String needle, String parameters) throws MatrixLibException {
-        String s = restGet("/" + project + "/needle?search=" + StringUtil.urlEncode(needle) + "&" + parameters);
         try {
-            return gson.fromJson(s, TrimNeedle.class);
+            return restGetJson("/" + project + "/needle?search=" + StringUtil.urlEncode(needle) + "&" + parameters, TrimNeedle.class);
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
         }
     }
 
     public TrimNeedle find(String project, String needle) throws MatrixLibException {
-        String s = restGet("/" + project + "/needle?search=" + StringUtil.urlEncode(needle));
         try {
-            TrimNeedle trim = gson.fromJson(s, TrimNeedle.class);
+            TrimNeedle trim = restGetJson("/" + project + "/needle?search=" + StringUtil.urlEncode(needle), TrimNeedle.class);
             return trim;
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
@@ -350,9 +446,8 @@ public class MatrixRestClient extends GenericRestClient {
     }
 
     public String[] findMini(String project, String needle) throws MatrixLibException {
-        String s = restGet("/" + project + "/needleminimal?search=" + StringUtil.urlEncode(needle));
         try {
-            String[] trim = gson.fromJson(s, String[].class);
+            String[] trim = restGetJson("/" + project + "/needleminimal?search=" + StringUtil.urlEncode(needle), String[].class);
             return trim;
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
@@ -360,45 +455,40 @@ public class MatrixRestClient extends GenericRestClient {
     }
 
     public String[] getTimeZone() throws MatrixLibException {
-        String s = restGet("/all/timezone");
         try {
-            return gson.fromJson(s, String[].class);
+            return restGetJson("/all/timezone", String[].class);
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
         }
     }
 
     public UserList getAllUsers() throws MatrixLibException {
-        String s = restGet("/user");
         try {
-            return gson.fromJson(s, UserList.class);
+            return restGetJson("/user", UserList.class);
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
         }
     }
 
     public UserListWithDetails getAllUsersWithDetails() throws MatrixLibException {
-        String s = restGet("/user?details=1");
         try {
-            return gson.fromJson(s, UserListWithDetails.class);
+            return restGetJson("/user?details=1", UserListWithDetails.class);
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
         }
     }
 
     public GroupList getAllGroups() throws MatrixLibException {
-        String s = restGet("/group");
         try {
-            return gson.fromJson(s, GroupList.class);
+            return restGetJson("/group", GroupList.class);
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
         }
     }
 
     public GroupListDetails getAllGroupsWithDetails() throws MatrixLibException {
-        String s = restGet("/group?details=1");
         try {
-            return gson.fromJson(s, GroupListDetails.class);
+            return restGetJson("/group?details=1", GroupListDetails.class);
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
         }
@@ -408,7 +498,7 @@ public class MatrixRestClient extends GenericRestClient {
         ArrayList<NameValuePair> urlParameters = new ArrayList<>();
         urlParameters.add(new BasicNameValuePair("reason", reason));
         urlParameters.add(new BasicNameValuePair("confirm", "yes"));
-        restDeleteExtended("/group/" + StringUtil.urlEncode(groupName), urlParameters, null);
+        HttpConnectionPool.release(restDeleteExtended("/group/" + StringUtil.urlEncode(groupName), urlParameters, null));
     }
     
     public int addGroup(String groupName, String reason) throws MatrixLibException {
@@ -453,9 +543,8 @@ public class MatrixRestClient extends GenericRestClient {
     }
     
     public ItemList getItemList(String project, String doc) throws MatrixLibException {
-        String s = restGet("/" + project + "/itemlist/" + doc);
         try {
-            return gson.fromJson(s, ItemList.class);
+            return restGetJson("/" + project + "/itemlist/" + doc, ItemList.class);
         } catch (JsonSyntaxException e) {
             throw new MatrixLibException (e);
         }
@@ -557,9 +646,48 @@ public class MatrixRestClient extends GenericRestClient {
         String url = "/" + project + "/import?reason=" + StringUtil.urlEncode(reason);
         String ret = restPostFile(url, f);
         Job job = gson.fromJson(ret, Job.class);
+        projectChanged(project);
         return job.jobId;
     }
 
+    /**
+     * @param status
+     * @return true if the status of the job says it failed
+     */
+    public static boolean isJobFailed(JobStatus status) {
+        String text = status != null && status.getStatus() != null ? status.getStatus().toLowerCase(Locale.ROOT) : "";
+        return text.contains("error") || text.contains("fail");
+    }
+
+    /**
+     * Waits for a job to finish, asking its status with an interval growing up to 5s
+     * @param project
+     * @param jobId
+     * @param timeoutInSeconds
+     * @return the last status, with a progress of 100 or failed: a finished job isn't always a successful one, see
+     * isJobFailed
+     * @throws MatrixLibException if the job isn't finished in time
+     */
+    public JobStatus waitForJob(String project, int jobId, int timeoutInSeconds) throws MatrixLibException {
+        long end = System.currentTimeMillis() + 1000L * timeoutInSeconds;
+        long interval = 250;
+        while (true) {
+            JobStatus status = getJobStatus(project, jobId);
+            if (status != null && (status.getProgress() >= 100 || isJobFailed(status)))
+                return status;
+            if (System.currentTimeMillis() + interval > end)
+                throw new MatrixLibException("Job " + jobId + " not finished after " + timeoutInSeconds + "s"
+                    + (status != null ? ": " + status.getStatus() : ""));
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new MatrixLibException(ex, "Interrupted while waiting for job " + jobId);
+            }
+            interval = Math.min(interval * 2, 5000);
+        }
+    }
+
     public int addNewUser (String userName, String password, String email) throws MatrixLibException {
         try {
             String serviceUrl = "/user?login=" + URLEncoder.encode(userName, "UTF-8")
@@ -721,6 +849,7 @@ public class MatrixRestClient extends GenericRestClient {
         if (StringUtils.isNotEmpty(fieldParam))
             action += "&fieldParam=" + StringUtil.urlEncode(fieldParam);
         String s = restPost(action, null);
+        projectChanged(project);
         FieldId ret = gson.fromJson(s, FieldId.class);
         if (ret.fieldId == 0)
             throw new MatrixLibException("Error adding field: " + s);
@@ -747,6 +876,7 @@ public class MatrixRestClient extends GenericRestClient {
             for (FieldAndValue fv: fieldValList.fieldVal)
         	urlParameters.add(new BasicNameValuePair("fx" + fv.id, fv.value));
         String s = restPost(action, urlParameters);
+        itemChanged(project, parent);
         ItemAndSerial ret = gson.fromJson(s, ItemAndSerial.class);
         if (ret.itemId == 0)
             throw new MatrixLibException("Error adding item: " + s);
@@ -810,6 +940,7 @@ public class MatrixRestClient extends GenericRestClient {
             urlParameters.add(new BasicNameValuePair("labels", combine));
         }
         String s = restPost(action, urlParameters);
+        itemChanged(project, parent);
         ItemAndSerial ret = gson.fromJson(s, ItemAndSerial.class);
         if (ret.itemId == 0)
             throw new MatrixLibException("Error adding item: " + s);
@@ -843,6 +974,7 @@ public class MatrixRestClient extends GenericRestClient {
             urlParameters.add(new BasicNameValuePair("labels", StringUtil.joinArrayWith(labels, ",")));
         }
         String s = restPut(action, urlParameters);
+        itemChanged(project, item);
         return s;
     }
 
@@ -868,6 +1000,7 @@ public class MatrixRestClient extends GenericRestClient {
             for (FieldAndValue fv: fieldValList.fieldVal)
         	    urlParameters.add(new BasicNameValuePair("fx" + fv.id, fv.value));
         String s = restPut(action, urlParameters);
+        itemChanged(project, item);
         return s;
     }
 
@@ -883,7 +1016,8 @@ public class MatrixRestClient extends GenericRestClient {
     public void unsetLabelInItem(String project, String itemRef, String label, String reason) throws MatrixLibException {
         if (getServerVersion().startsWith("1.6"))
             throw new MatrixLibException("You cannot (un)set labels this way for versions before 1.7. They were set in fields");
-        ItemAndValue item = getItem(project, itemRef);
+        // not from the cache: what is written back must be the current item
+        ItemAndValue item = getItemFromServer(project, itemRef);
         // Retrieve the labels and remove the one we don't want anymore
         ArrayList<String> oldLabels = item.labels;
         ArrayList<String> newLabels = computeNewLabels(oldLabels, label);
@@ -901,7 +1035,8 @@ public class MatrixRestClient extends GenericRestClient {
     public void setLabelInItem(String project, String itemRef, String label, String reason) throws MatrixLibException {
         if (getServerVersion().startsWith("1.6"))
             throw new MatrixLibException("You cannot set labels this way for versions before 1.7. They were set in fields");
-        ItemAndValue item = getItem(project, itemRef);
+        // not from the cache: what is written back must be the current item
+        ItemAndValue item = getItemFromServer(project, itemRef);
         // Retrieve the labels and remove the one we don't want anymore
         ArrayList<String> labels = item.labels;
         if (labels.contains(label))
@@ -934,6 +1069,7 @@ public class MatrixRestClient extends GenericRestClient {
         ArrayList<NameValuePair> urlParameters = new ArrayList<>();
         urlParameters.add(new BasicNameValuePair("reason", reason));
         String s = restPost(action, urlParameters);
+        itemChanged(project, upItem, downItem);
         return s;
     }
 
@@ -946,8 +1082,7 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public AllSetting getAllSetting (String project) throws MatrixLibException {
         String action = "/" + project + "/setting";
-        String s = restGet(action);
-        AllSetting ret = gson.fromJson(s, AllSetting.class);
+        AllSetting ret = restGetJson(action, AllSetting.class);
         return ret;
     }
 
@@ -1057,6 +1192,7 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public String deleteCategory(String project, String category, String reason) throws MatrixLibException {
         String s = restDelete("/" + project + "/cat/" + category + "?reason=" + StringUtil.urlEncode(reason));
+        projectChanged(project);
         return s;
         
     }
@@ -1067,8 +1203,7 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public ArrayList<String> getAllProjects() throws MatrixLibException {
         String action = "/?silent=1";
-        String s = restGet(action);
-        ListProjectAndSettings list = gson.fromJson(s, ListProjectAndSettings.class);
+        ListProjectAndSettings list = restGetJson(action, ListProjectAndSettings.class);
         ArrayList<String> ret = new ArrayList<>();
         if (list != null && list.getProject() != null)
             for (ProjectType proj: list.getProject())
@@ -1082,8 +1217,7 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public ListProjectAndSettings getAllProjectsAndSettings() throws MatrixLibException {
         String action = "/?silent=1&adminUI=1";
-        String s = restGet(action);
-        ListProjectAndSettings list = gson.fromJson(s, ListProjectAndSettings.class);
+        ListProjectAndSettings list = restGetJson(action, ListProjectAndSettings.class);
         if (list.getServerVersion() == null)
             list.setServerVersion("1.6.999.999");
         return list;
@@ -1094,8 +1228,7 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public ListProjectAndSettings  getProjectAndServerVersion() throws MatrixLibException {
         String action = "/?silent=1&adminUI=1&output=project,serverVersion";
-        String s = restGet(action);
-        ListProjectAndSettings list = gson.fromJson(s, ListProjectAndSettings.class);
+        ListProjectAndSettings list = restGetJson(action, ListProjectAndSettings.class);
         if (list.getServerVersion() == null)
             list.setServerVersion("1.6.999.999");
         return list;
@@ -1108,8 +1241,7 @@ public class MatrixRestClient extends GenericRestClient {
      */
     public ServerStatus getServerStatus()  throws MatrixLibException {
         String action = "/all/status?silent=1";
-        String s = restGet(action);
-        ServerStatus ret = gson.fromJson(s, ServerStatus.class);
+        ServerStatus ret = restGetJson(action, ServerStatus.class);
         return ret;
     }
     
@@ -1165,14 +1297,14 @@ permission: 3
 }        
         */
         String action = "/" + project;
-        String s = restGet(action);
-        ProjectDetails details = gson.fromJson(s, ProjectDetails.class);
+        ProjectDetails details = restGetJson(action, ProjectDetails.class);
         return details;
     }
 
     public String deleteProject(String project) throws MatrixLibException {
         String action = "/" + project + "?confirm=yes";
         String s = restDelete(action);
+        projectChanged(project);
         return s;
     }
 
@@ -1231,8 +1363,7 @@ permission: 3
         else
             if (silent)
                 action += "?silent=1";
-        String s = restGet(action);
-        GetDateAck gd = gson.fromJson(s, GetDateAck.class);
+        GetDateAck gd = restGetJson(action, GetDateAck.class);
         return gd;
     }
     
@@ -1250,8 +1381,7 @@ permission: 3
         else
             action += project;
         action += "/job/" + jobId;
-        String s = restGet(action);
-        JobStatus ret = gson.fromJson(s, JobStatus.class);
+        JobStatus ret = restGetJson(action, JobStatus.class);
         return ret;
     }
 
@@ -1353,8 +1483,7 @@ permission: 3
         if (filters != null)
             param = "&filter=" + StringUtil.joinArrayWith(filters, ",");
         String action = "/" + projectName + "/tree?fancy" + param;
-        String s = restGet(action);
-        ArrayList<FancyLeaf> fancy = gson.fromJson(s, new TypeToken<ArrayList<FancyLeaf>>(){}.getType());
+        ArrayList<FancyLeaf> fancy = restGetJson(action, new TypeToken<ArrayList<FancyLeaf>>(){}.getType());
         return fancy;
     }
 
@@ -1372,8 +1501,7 @@ permission: 3
         if (at != null)
             param += "&atDate=" + DateUtil.formatDateUtcIso8601(at);
         String action = "/" + projectName + "/tree?fancy" + param;
-        String s = restGet(action);
-        ArrayList<FancyLeaf> fancy = gson.fromJson(s, new TypeToken<ArrayList<FancyLeaf>>(){}.getType());
+        ArrayList<FancyLeaf> fancy = restGetJson(action, new TypeToken<ArrayList<FancyLeaf>>(){}.getType());
         return fancy;
     }
     
@@ -1386,8 +1514,7 @@ permission: 3
      */
     public JobId exportItems(String project, String itemList) throws MatrixLibException {
         String serviceUrl = "/" + project + "/export?itemList=" + itemList;
-        String s = restGet (serviceUrl);
-        JobId ret = gson.fromJson(s, JobId.class);
+        JobId ret = restGetJson(serviceUrl, JobId.class);
         return ret;
     }
 
@@ -1446,23 +1573,21 @@ permission: 3
     }
     public JobsWithUrl getAllJobs(String project) throws MatrixLibException {
         String action = "/" + project + "/job/";
-        String s = restGet(action);
-        return gson.fromJson(s, JobsWithUrl.class);
+        return restGetJson(action, JobsWithUrl.class);
     }
     
     public UserDetails getUserDetails (String user) throws MatrixLibException {
         String action = "/user/" + user + "/details";
-        String s = restGet(action);
-        return gson.fromJson(s, UserDetails.class);
+        return restGetJson(action, UserDetails.class);
     }
     
     public UserDetailsAdvanced getUserDetailsAdvanced (String user) throws MatrixLibException {
         String action = "/user/" + user;
-        String s = restGet(action);
-        return gson.fromJson(s, UserDetailsAdvanced.class);
+        return restGetJson(action, UserDetailsAdvanced.class);
     }
     
     public TrimAuditList getUserAudit(String user, Integer startAt, Integer maxResults) throws MatrixLibException {
+        CloseableHttpResponse httpResponse = null;
         try {
             String action = "/user/" + user + "/audit";
             ArrayList<NameValuePair> urlParameters = new ArrayList<>();
@@ -1470,17 +1595,19 @@ permission: 3
                 urlParameters.add(new BasicNameValuePair("startAt", "" + startAt));
             if (maxResults != null)
                 urlParameters.add(new BasicNameValuePair("maxResults", "" + maxResults));
-            CloseableHttpResponse httpResponse = restGetExtended(action, urlParameters, null);
-            String ret = EntityUtils.toString(httpResponse.getEntity(),"UTF-8");
+            httpResponse = restGetExtended(action, urlParameters, null);
             if (httpResponse.getStatusLine().getStatusCode() != 200)
                 throw new MatrixLibException("Error " + httpResponse.getStatusLine().getStatusCode());
-            return gson.fromJson(ret, TrimAuditList.class);
+            return readJson(httpResponse.getEntity(), TrimAuditList.class);
         } catch (Exception ex) {
             throw new MatrixLibException(ex);
+        } finally {
+            HttpConnectionPool.release(httpResponse);
         }
     }
 
     public TrimAuditList getProjectAudit(String project, Integer startAt, Integer maxResults) throws MatrixLibException {
+        CloseableHttpResponse httpResponse = null;
         try {
             String action = "/" + project + "/audit";
             ArrayList<NameValuePair> urlParameters = new ArrayList<>();
@@ -1488,17 +1615,19 @@ permission: 3
                 urlParameters.add(new BasicNameValuePair("startAt", "" + startAt));
             if (maxResults != null)
                 urlParameters.add(new BasicNameValuePair("maxResults", "" + maxResults));
-            CloseableHttpResponse httpResponse = restGetExtended(action, urlParameters, null);
-            String ret = EntityUtils.toString(httpResponse.getEntity(),"UTF-8");
+            httpResponse = restGetExtended(action, urlParameters, null);
             if (httpResponse.getStatusLine().getStatusCode() != 200)
                 throw new MatrixLibException("Error " + httpResponse.getStatusLine().getStatusCode());
-            return gson.fromJson(ret, TrimAuditList.class);
+            return readJson(httpResponse.getEntity(), TrimAuditList.class);
         } catch (Exception ex) {
             throw new MatrixLibException(ex);
+        } finally {
+            HttpConnectionPool.release(httpResponse);
         }
     }
     
     public TrimAuditList getProjectAuditWithTech(String project, Integer startAt, Integer maxResults) throws MatrixLibException {
+        CloseableHttpResponse httpResponse = null;
         try {
             String action = "/" + project + "/audit";
             ArrayList<NameValuePair> urlParameters = new ArrayList<>();
@@ -1507,13 +1636,14 @@ permission: 3
             if (maxResults != null)
                 urlParameters.add(new BasicNameValuePair("maxResults", "" + maxResults));
             urlParameters.add(new BasicNameValuePair("tech", "yes"));
-            CloseableHttpResponse httpResponse = restGetExtended(action, urlParameters, null);
-            String ret = EntityUtils.toString(httpResponse.getEntity(),"UTF-8");
+            httpResponse = restGetExtended(action, urlParameters, null);
             if (httpResponse.getStatusLine().getStatusCode() != 200)
                 throw new MatrixLibException("Error " + httpResponse.getStatusLine().getStatusCode());
-            return gson.fromJson(ret, TrimAuditList.class);
+            return readJson(httpResponse.getEntity(), TrimAuditList.class);
         } catch (Exception ex) {
             throw new MatrixLibException(ex);
+        } finally {
+            HttpConnectionPool.release(httpResponse);
         }
     }
 
@@ -1540,8 +1670,7 @@ permission: 3
     public ProjectFileList getAllFiles(String project) throws MatrixLibException {
         try {
             String action = "/" + project + "/file";
-            String ret = restGet (action);
-            ProjectFileList response = gson.fromJson(ret, ProjectFileList.class);
+            ProjectFileList response = restGetJson(action, ProjectFileList.class);
             return response;
         } catch (Exception ex) {
             throw new MatrixLibException(ex);
@@ -1566,6 +1695,7 @@ permission: 3
             action += "&newFolder=" + newFolderRef + "&";
         action += "reason=" + StringUtil.urlEncode(reason);
         String s = restPut(action, null);
+        itemChanged(project, itemRef, newFolderRef);
         return s;
     }
 
@@ -1584,6 +1714,7 @@ permission: 3
         if (StringUtils.isNotEmpty(reason))
             urlParameters = addParameter(urlParameters, "reason", reason);
         String s = restPost(action, urlParameters);
+        projectChanged(project);
         System.out.println(s);
         return s;
     }
@@ -1601,6 +1732,7 @@ permission: 3
         String action = "/" + project + "/field"
                  + "?field=" + fieldId + "&order=" + newPos + "&reason=" + StringUtil.urlEncode(reason);
         String s = restPut(action, null);
+        projectChanged(project);
         return s;
     }
 
@@ -1683,6 +1815,7 @@ permission: 3
         String action = "/" + project + "/cat/" + oldCategoryShort 
                  + "?shortLabel=" + newCategoryShort + "&label=" + StringUtil.urlEncode(newCategoryLong) + "&reason=" + StringUtil.urlEncode(reason);
         String s = restPut(action, null);
+        projectChanged(project);
         return s;
     }
 
@@ -1699,6 +1832,7 @@ permission: 3
         String action = "/" + project + "/field"
                 + "?field=" + fieldID + "&label=" + StringUtil.urlEncode(newName) + "&reason=" + StringUtil.urlEncode(reason);
         String s = restPut(action, null);
+        projectChanged(project);
         return s;
     }
 
@@ -1758,8 +1892,7 @@ permission: 3
 
     public LicenseStatus getLicenseStatus() throws MatrixLibException {
         String action = "/all/license";
-        String s = restGet(action);
-        LicenseStatus ret = gson.fromJson(s, LicenseStatus.class);
+        LicenseStatus ret = restGetJson(action, LicenseStatus.class);
         return ret;        
     }
 
@@ -1777,6 +1910,7 @@ permission: 3
         ArrayList<NameValuePair> urlParameters = new ArrayList<>();
         urlParameters.add(new BasicNameValuePair("reason", reason));
         String s = restPost(action, urlParameters);
+        itemAndNeighboursChanged(project, itemRef);
         return s;
     }
 
@@ -1795,6 +1929,7 @@ permission: 3
         urlParameters.add(new BasicNameValuePair("at", "" + version));
         urlParameters.add(new BasicNameValuePair("reason", reason));
         String s = restPost(action, urlParameters);
+        itemChanged(project, itemRef);
         return s;
     }
 
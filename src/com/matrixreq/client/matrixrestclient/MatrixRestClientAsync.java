@@ -0,0 +1,236 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.client.matrixrestclient;
+
+import com.matrixreq.client.RetryLaterException;
+import com.matrixreq.client.RetryPolicy;
+import com.matrixreq.client.matrixrestclient.struct.FieldAndValueList;
+import com.matrixreq.client.matrixrestclient.struct.FileAndKey;
+import com.matrixreq.client.matrixrestclient.struct.ItemAndSerial;
+import com.matrixreq.client.matrixrestclient.struct.ItemAndValue;
+import com.matrixreq.client.matrixrestclient.struct.JobStatus;
+import com.matrixreq.lib.HttpConnectionPool;
+import com.matrixreq.lib.MatrixLibException;
+import com.matrixreq.lib.ThreadUtil;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+/**
+ * Asynchronous calls to a MatrixRestClient: each method sends the request and returns at once a future completed
+ * with the result, or completed exceptionally with the MatrixLibException of the call.
+ *
+ * At most maxInFlight requests run at the same time, the others wait in order. The requests use the connections of
+ * HttpConnectionPool, whose per server limit is raised to maxInFlight if needed. The last status of the wrapped client
+ * isn't meaningful while requests run in parallel: errors come through the futures.
+ *
+ * The calls that can safely be sent twice (reads, updates, deletes) are retried after a network error, or a status
+ * the retry policy of the client retries (429, 503...), following the retry policy of this class. The wait between
+ * attempts is scheduled on a timer, it doesn't hold one of the maxInFlight threads: the client and its transport
+ * don't sleep before a retry on these threads (see RetryPolicy.setWaitingAllowed), they fail and the call is
+ * rescheduled. Creations (addItem, addFolder, uploadFile...) are never retried here, so they can't be done twice.
+ */
+public class MatrixRestClientAsync implements Closeable {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    /**
+     * A blocking call to the REST client
+     * @param <T>
+     */
+    @FunctionalInterface
+    public interface RestCall<T> {
+        T call() throws MatrixLibException;
+    }
+
+    private final MatrixRestClient client;
+    private final int maxInFlight;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private RetryPolicy retryPolicy = new RetryPolicy(3);
+
+    public MatrixRestClientAsync(MatrixRestClient client) {
+        this(client, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * @param client logged in client, used by all the calls
+     * @param maxInFlight maximum number of requests running at the same time
+     */
+    public MatrixRestClientAsync(MatrixRestClient client, int maxInFlight) {
+        this.client = client;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        if (HttpConnectionPool.getMaxPerRoute() < this.maxInFlight)
+            HttpConnectionPool.setLimits(Math.max(HttpConnectionPool.getMaxTotal(), this.maxInFlight), this.maxInFlight);
+        executor = ThreadUtil.newDaemonPool(this.maxInFlight, "matrix-rest");
+        timer = Executors.newSingleThreadScheduledExecutor(ThreadUtil.daemonThreads("matrix-rest-retry"));
+    }
+
+    /**
+     * @param retryPolicy policy for the calls that can be retried, null for no retry
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public MatrixRestClient getClient() {
+        return client;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Runs any call of the client asynchronously. The call isn't retried
+     * @param <T>
+     * @param call
+     * @return the future result of the call
+     */
+    public <T> CompletableFuture<T> submit(RestCall<T> call) {
+        CompletableFuture<T> ret = new CompletableFuture<>();
+        attempt(call, ret, 0, false);
+        return ret;
+    }
+
+    /**
+     * Runs a call asynchronously, retrying it after a network error
+     * @param <T>
+     * @param call a call that has the same effect if done twice
+     * @return the future result of the call
+     */
+    public <T> CompletableFuture<T> submitIdempotent(RestCall<T> call) {
+        CompletableFuture<T> ret = new CompletableFuture<>();
+        attempt(call, ret, 0, true);
+        return ret;
+    }
+
+    private <T> void attempt(RestCall<T> call, CompletableFuture<T> ret, int retry, boolean idempotent) {
+        try {
+            executor.execute(() -> {
+                RetryPolicy.setWaitingAllowed(false);
+                try {
+                    ret.complete(call.call());
+                } catch (Exception | Error ex) {
+                    RetryPolicy policy = retryPolicy;
+                    long delay = idempotent && policy != null && retry < policy.getMaxRetries()
+                        ? retryDelay(policy, retry + 1, ex) : -1;
+                    if (delay >= 0) {
+                        // the thread is free while waiting
+                        try {
+                            timer.schedule(() -> attempt(call, ret, retry + 1, idempotent), delay, TimeUnit.MILLISECONDS);
+                        } catch (RejectedExecutionException closed) {
+                            ret.completeExceptionally(ex);
+                        }
+                    } else {
+                        ret.completeExceptionally(ex);
+                    }
+                } finally {
+                    RetryPolicy.setWaitingAllowed(true);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            ret.completeExceptionally(new MatrixLibException(ex, "the asynchronous client is closed"));
+        }
+    }
+
+    /**
+     * @return the time to wait before trying the call again after this failure, -1 if it's not worth a retry
+     */
+    private static long retryDelay(RetryPolicy policy, int retry, Throwable ex) {
+        int index = ExceptionUtils.indexOfType(ex, RetryLaterException.class);
+        if (index >= 0)
+            return policy.delayMillis(retry, ((RetryLaterException) ExceptionUtils.getThrowableList(ex).get(index)).getRetryAfter());
+        return ExceptionUtils.getRootCause(ex) instanceof IOException ? policy.backoffMillis(retry) : -1;
+    }
+
+    public CompletableFuture<ItemAndValue> getItem(String project, String item) {
+        return submitIdempotent(() -> client.getItem(project, item));
+    }
+
+    public CompletableFuture<ItemAndSerial> addFolder(String project, String parent, String label, String reason, FieldAndValueList fieldValList) {
+        return submit(() -> client.addFolder(project, parent, label, reason, fieldValList));
+    }
+
+    public CompletableFuture<ItemAndSerial> addItem(String project, String parent, String title, String reason, FieldAndValueList fieldValList) {
+        return submit(() -> client.addItem(project, parent, title, reason, fieldValList));
+    }
+
+    public CompletableFuture<ItemAndSerial> addItem(String project, String parent, String title, String reason, FieldAndValueList fieldValList, String author, ArrayList<String> labels) {
+        return submit(() -> client.addItem(project, parent, title, reason, fieldValList, author, labels));
+    }
+
+    public CompletableFuture<String> updateItem(String project, String item, String title, String reason, FieldAndValueList fieldValList, List<String> labels) {
+        return submitIdempotent(() -> client.updateItem(project, item, title, reason, fieldValList, labels));
+    }
+
+    public CompletableFuture<String> updateItemOnlyThose(String project, String item, String title, String reason, FieldAndValueList fieldValList) {
+        return submitIdempotent(() -> client.updateItemOnlyThose(project, item, title, reason, fieldValList));
+    }
+
+    public CompletableFuture<Void> setLabelInItem(String project, String itemRef, String label, String reason) {
+        return submitIdempotent(() -> {
+            client.setLabelInItem(project, itemRef, label, reason);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> unsetLabelInItem(String project, String itemRef, String label, String reason) {
+        return submitIdempotent(() -> {
+            client.unsetLabelInItem(project, itemRef, label, reason);
+            return null;
+        });
+    }
+
+    public CompletableFuture<String> addLink(String project, String upItem, String downItem, String reason) {
+        return submit(() -> client.addLink(project, upItem, downItem, reason));
+    }
+
+    public CompletableFuture<String> deleteItem(String project, String itemRef, String reason) {
+        return submitIdempotent(() -> client.deleteItem(project, itemRef, reason));
+    }
+
+    public CompletableFuture<FileAndKey> uploadFile(File f, String project) {
+        return submit(() -> client.uploadFile(f, project));
+    }
+
+    public CompletableFuture<Integer> importItems(File f, String project, String reason) {
+        return submit(() -> client.importItems(f, project, reason));
+    }
+
+    public CompletableFuture<JobStatus> getJobStatus(String project, int jobId) {
+        return submitIdempotent(() -> client.getJobStatus(project, jobId));
+    }
+
+    /**
+     * Lets the submitted calls finish, then stops the threads
+     */
+    @Override
+    public void close() {
+        timer.shutdown();
+        executor.shutdown();
+    }
+}
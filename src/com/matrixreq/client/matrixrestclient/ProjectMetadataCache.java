@@ -0,0 +1,288 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.client.matrixrestclient;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.matrixreq.client.matrixrestclient.struct.AllSetting;
+import com.matrixreq.client.matrixrestclient.struct.CategoryAndItems;
+import com.matrixreq.client.matrixrestclient.struct.Field;
+import com.matrixreq.client.matrixrestclient.struct.GetAllCateg;
+import com.matrixreq.client.matrixrestclient.struct.ProjectDetails;
+import com.matrixreq.client.matrixrestclient.struct.Setting;
+import com.matrixreq.lib.LoggerConfig;
+import com.matrixreq.lib.MatrixLibException;
+import com.matrixreq.lib.ThreadUtil;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Keeps the metadata of projects (categories, fields of a category, settings, project details) in memory and
+ * optionally in a file, so that tools starting often don't ask the server for them at each run.
+ *
+ * An entry is asked again to the server when it's older than the time to live, or when it was read from a server
+ * with another version: an upgrade can change the metadata. Concurrent requests for the same entry share a single
+ * request, and prefetch loads the missing entries of a project with parallel requests. A null answer isn't kept, it's
+ * asked again next time.
+ *
+ * The values returned are decoded for each call, so they can be changed by the caller without changing the cache.
+ */
+public class ProjectMetadataCache {
+
+    public static final long DEFAULT_TTL_MILLIS = 24 * 3600 * 1000L;
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    /**
+     * A value as stored in memory and in the file
+     */
+    private static class Entry {
+        String json;
+        long time;
+        String version;
+    }
+
+    @FunctionalInterface
+    private interface Fetch {
+        Object fetch() throws MatrixLibException;
+    }
+
+    private static final Type ENTRIES_TYPE = new TypeToken<Map<String, Entry>>() {}.getType();
+    private static final Type FIELDS_TYPE = new TypeToken<ArrayList<Field>>() {}.getType();
+
+    private final MatrixRestClient client;
+    private final File file;
+    private final long ttlMillis;
+    private final Gson gson = new Gson();
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    private volatile String version;
+
+    /**
+     * A cache in memory only, with the default time to live
+     * @param client
+     */
+    public ProjectMetadataCache(MatrixRestClient client) {
+        this(client, null, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param client
+     * @param file where the entries are kept between runs, null to keep them in memory only. Can be shared by
+     * several servers and projects
+     * @param ttlMillis age after which an entry is asked again
+     */
+    public ProjectMetadataCache(MatrixRestClient client, File file, long ttlMillis) {
+        this.client = client;
+        this.file = file;
+        this.ttlMillis = ttlMillis;
+        if (file != null && file.exists()) {
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                Map<String, Entry> stored = gson.fromJson(reader, ENTRIES_TYPE);
+                if (stored != null)
+                    entries.putAll(stored);
+            } catch (IOException | RuntimeException ex) {
+                // a damaged cache is only a slower start
+                LoggerConfig.getLogger().warn("Ignoring metadata cache {}: {}", file, ex.toString());
+            }
+        }
+    }
+
+    /**
+     * By default the version is the one of the server, asked once. A caller knowing better (a configuration
+     * revision for example) can give its own, entries read with another version are asked again
+     * @param version
+     */
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    public GetAllCateg getAllCategory(String project) throws MatrixLibException {
+        return get(project, "cat", GetAllCateg.class, () -> client.getAllCategory(project));
+    }
+
+    /**
+     * @param project
+     * @param category
+     * @return the fields of the category (the items of the category aren't cached)
+     * @throws MatrixLibException
+     */
+    public ArrayList<Field> getCategoryFields(String project, String category) throws MatrixLibException {
+        return get(project, "cat/" + category, FIELDS_TYPE, () -> {
+            CategoryAndItems categoryAndItems = client.getCategory(project, category);
+            return categoryAndItems != null ? categoryAndItems.fieldList : null;
+        });
+    }
+
+    public AllSetting getAllSetting(String project) throws MatrixLibException {
+        return get(project, "setting", AllSetting.class, () -> client.getAllSetting(project));
+    }
+
+    /**
+     * @param project
+     * @param setting
+     * @return the value of a project setting, null if it isn't set
+     * @throws MatrixLibException
+     */
+    public String getSetting(String project, String setting) throws MatrixLibException {
+        AllSetting allSetting = getAllSetting(project);
+        if (allSetting == null || allSetting.settingList == null)
+            return null;
+        for (Setting set: allSetting.settingList)
+            if (setting.equals(set.key))
+                return set.value;
+        return null;
+    }
+
+    public ProjectDetails getProjectDetails(String project) throws MatrixLibException {
+        return get(project, "details", ProjectDetails.class, () -> client.getProjectDetails(project));
+    }
+
+    /**
+     * Loads with parallel requests the fields of the given categories of a project, when they're not in the cache yet
+     * @param project
+     * @param categories
+     * @throws MatrixLibException the first error met
+     */
+    public void prefetch(String project, Collection<String> categories) throws MatrixLibException {
+        // the version is needed by all the requests below, it's asked only once
+        currentVersion();
+        List<Fetch> fetches = new ArrayList<>();
+        for (String category : new ArrayList<>(categories))
+            fetches.add(() -> getCategoryFields(project, category));
+        if (fetches.isEmpty())
+            return;
+        ExecutorService executor = ThreadUtil.newDaemonPool(Math.min(DEFAULT_PARALLELISM, fetches.size()), "metadata-cache");
+        try {
+            List<CompletableFuture<Object>> futures = new ArrayList<>();
+            for (Fetch fetch : fetches) {
+                CompletableFuture<Object> future = new CompletableFuture<>();
+                executor.execute(() -> {
+                    try {
+                        future.complete(fetch.fetch());
+                    } catch (Exception ex) {
+                        future.completeExceptionally(ex);
+                    }
+                });
+                futures.add(future);
+            }
+            for (CompletableFuture<Object> future : futures)
+                ThreadUtil.waitFor(future, "project metadata");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Forgets what is known of a project, in memory and in the file
+     * @param project
+     */
+    public void invalidate(String project) {
+        String prefix = key(project, "");
+        entries.keySet().removeIf(key -> key.startsWith(prefix));
+        save();
+    }
+
+    /**
+     * Forgets everything, in memory and in the file
+     */
+    public void invalidateAll() {
+        entries.clear();
+        save();
+    }
+
+    private String key(String project, String what) {
+        return client.getBaseUrl() + " " + project + " " + what;
+    }
+
+    private <T> T get(String project, String what, Type type, Fetch fetch) throws MatrixLibException {
+        String key = key(project, what);
+        String current = currentVersion();
+        Entry entry = entries.get(key);
+        if (entry == null || System.currentTimeMillis() - entry.time > ttlMillis || ! current.equals(entry.version))
+            entry = load(key, current, fetch);
+        return gson.fromJson(entry.json, type);
+    }
+
+    private String currentVersion() throws MatrixLibException {
+        String ret = version;
+        if (ret == null) {
+            synchronized (this) {
+                if (version == null)
+                    version = client.getProjectAndServerVersion().getServerVersion();
+                ret = version;
+            }
+        }
+        return ret;
+    }
+
+    private Entry load(String key, String current, Fetch fetch) throws MatrixLibException {
+        CompletableFuture<Entry> mine = new CompletableFuture<>();
+        CompletableFuture<Entry> running = loading.putIfAbsent(key, mine);
+        if (running != null)
+            // someone is asking the server already
+            return ThreadUtil.waitFor(running, "project metadata");
+        try {
+            Object value = fetch.fetch();
+            Entry entry = new Entry();
+            entry.json = gson.toJson(value);
+            entry.time = System.currentTimeMillis();
+            entry.version = current;
+            if (value != null) {
+                entries.put(key, entry);
+                save();
+            }
+            mine.complete(entry);
+            return entry;
+        } catch (MatrixLibException | RuntimeException ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            loading.remove(key, mine);
+        }
+    }
+
+    /**
+     * Writes the entries to a temporary file replacing the previous one, so that the file is always complete
+     */
+    private synchronized void save() {
+        if (file == null)
+            return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                gson.toJson(new HashMap<>(entries), ENTRIES_TYPE, writer);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LoggerConfig.getLogger().warn("Failed to save metadata cache {}: {}", file, ex.toString());
+        }
+    }
+}
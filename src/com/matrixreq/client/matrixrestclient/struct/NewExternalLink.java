@@ -0,0 +1,46 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.client.matrixrestclient.struct;
+
+/**
+ * A link to create with LinksProcessor.addLinks, between a Matrix item and an issue of a plugin
+ */
+public class NewExternalLink {
+    public String matrixItem;
+    public int pluginId;
+    public String externalItemId;
+    public String externalItemTitle;
+    public String externalItemUrl;
+
+    public NewExternalLink () {
+    }
+
+    /**
+     * @param matrixItem like REQ-12
+     * @param pluginId like 211 for Jira Cloud
+     * @param externalItemId like MATRIX-1234
+     * @param externalItemTitle
+     * @param externalItemUrl
+     */
+    public NewExternalLink (String matrixItem, int pluginId, String externalItemId, String externalItemTitle, String externalItemUrl) {
+        this.matrixItem = matrixItem;
+        this.pluginId = pluginId;
+        this.externalItemId = externalItemId;
+        this.externalItemTitle = externalItemTitle;
+        this.externalItemUrl = externalItemUrl;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.lib;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Connection pool shared by all the HTTP clients of the process. Connections are kept alive between requests, so
+ * requests to the same server reuse an open TCP/TLS connection instead of connecting again each time.
+ *
+ * The pool is created on first use. The limits can be changed at any time with setLimits; connections idle for longer
+ * than the idle timeout are closed by a background thread.
+ */
+public class HttpConnectionPool {
+
+    public static final int DEFAULT_MAX_TOTAL = 50;
+    public static final int DEFAULT_MAX_PER_ROUTE = 20;
+    public static final int DEFAULT_KEEP_ALIVE_SECONDS = 30;
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+
+    private static int maxTotal = DEFAULT_MAX_TOTAL;
+    private static int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+    private static int keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+    private static int idleTimeoutSeconds = DEFAULT_IDLE_TIMEOUT_SECONDS;
+
+    private static PoolingHttpClientConnectionManager connectionManager = null;
+    private static IdleConnectionEvictor evictor = null;
+
+    /**
+     * Keep-alive given by the server in its Keep-Alive header, our default otherwise
+     */
+    private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = (HttpResponse response, HttpContext context) -> {
+        HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+        while (it.hasNext()) {
+            HeaderElement element = it.nextElement();
+            if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                try {
+                    return Long.parseLong(element.getValue()) * 1000;
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        return keepAliveSeconds * 1000L;
+    };
+
+    private HttpConnectionPool() {
+    }
+
+    /**
+     * Changes the pool limits, also when the pool is already in use
+     * @param maxTotal maximum number of connections
+     * @param maxPerRoute maximum number of connections to the same server
+     */
+    public static synchronized void setLimits(int maxTotal, int maxPerRoute) {
+        HttpConnectionPool.maxTotal = Math.max(1, maxTotal);
+        HttpConnectionPool.maxPerRoute = Math.max(1, Math.min(maxPerRoute, HttpConnectionPool.maxTotal));
+        if (connectionManager != null) {
+            connectionManager.setMaxTotal(HttpConnectionPool.maxTotal);
+            connectionManager.setDefaultMaxPerRoute(HttpConnectionPool.maxPerRoute);
+        }
+    }
+
+    /**
+     * @param keepAliveSeconds how long a connection is kept when the server doesn't say
+     */
+    public static synchronized void setKeepAlive(int keepAliveSeconds) {
+        HttpConnectionPool.keepAliveSeconds = Math.max(1, keepAliveSeconds);
+    }
+
+    /**
+     * Must be called before the pool is first used
+     * @param idleTimeoutSeconds idle connections are closed after this time
+     */
+    public static synchronized void setIdleTimeout(int idleTimeoutSeconds) {
+        HttpConnectionPool.idleTimeoutSeconds = Math.max(1, idleTimeoutSeconds);
+    }
+
+    public static synchronized int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public static synchronized int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    /**
+     * @return the shared connection manager, created on first call
+     */
+    public static synchronized PoolingHttpClientConnectionManager getConnectionManager() {
+        if (connectionManager == null) {
+            connectionManager = new PoolingHttpClientConnectionManager();
+            connectionManager.setMaxTotal(maxTotal);
+            connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+            // a connection the server may have closed meanwhile is checked before being reused
+            connectionManager.setValidateAfterInactivity(2000);
+            evictor = new IdleConnectionEvictor(connectionManager, idleTimeoutSeconds, TimeUnit.SECONDS);
+            evictor.start();
+        }
+        return connectionManager;
+    }
+
+    /**
+     * @return a client builder using the shared pool. Closing the built client doesn't close the pool
+     */
+    public static HttpClientBuilder custom() {
+        return HttpClients.custom()
+                .setConnectionManager(getConnectionManager())
+                .setConnectionManagerShared(true)
+                .setKeepAliveStrategy(KEEP_ALIVE_STRATEGY);
+    }
+
+    /**
+     * Gives the connection of a response back to the pool: what's left of the body is read, then the response is
+     * closed. Does nothing with null
+     * @param response
+     */
+    public static void release(CloseableHttpResponse response) {
+        if (response == null)
+            return;
+        EntityUtils.consumeQuietly(response.getEntity());
+        try {
+            response.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Closes all the connections. The pool is created again if used afterwards
+     */
+    public static synchronized void shutdown() {
+        if (evictor != null) {
+            evictor.shutdown();
+            evictor = null;
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+            connectionManager = null;
+        }
+    }
+}
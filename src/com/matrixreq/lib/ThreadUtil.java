@@ -0,0 +1,73 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.lib;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools of the clients and the converter
+ */
+public class ThreadUtil {
+
+    /**
+     * @param name prefix of the thread names, they're numbered from 1
+     * @return a factory of daemon threads, which don't keep the JVM alive
+     */
+    public static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param nbThreads
+     * @param name prefix of the thread names
+     * @return a fixed pool of daemon threads, to shut down by the caller
+     */
+    public static ExecutorService newDaemonPool(int nbThreads, String name) {
+        return Executors.newFixedThreadPool(Math.max(1, nbThreads), daemonThreads(name));
+    }
+
+    /**
+     * Waits for a future
+     * @param <T>
+     * @param future
+     * @param what what is waited for, for the message when interrupted
+     * @return the result of the future
+     * @throws MatrixLibException the exception the future failed with, wrapped if it isn't a MatrixLibException
+     */
+    public static <T> T waitFor(Future<T> future, String what) throws MatrixLibException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new MatrixLibException(ex, "Interrupted while waiting for " + what);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof MatrixLibException)
+                throw (MatrixLibException) ex.getCause();
+            throw new MatrixLibException(ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex);
+        }
+    }
+}
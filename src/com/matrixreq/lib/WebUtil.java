@@ -67,6 +67,9 @@ public class WebUtil {
     @SuppressWarnings("unused") 
     private static final WebUtil staticInstance = new WebUtil(1);
 
+    // shared by all the uploads, on the connections of HttpConnectionPool
+    private static CloseableHttpClient uploadClient = null;
+
     /**
      * Normal constructor
      */
@@ -381,8 +384,20 @@ public class WebUtil {
         return postFileToWebSpecialAuth(url, auth, fileToPost);
     }
 
+    /**
+     * @return the client used for all the uploads. It's thread safe: uploads can run in parallel, up to the limits of
+     * HttpConnectionPool
+     */
+    private static synchronized CloseableHttpClient getUploadClient() {
+        if (uploadClient == null)
+            uploadClient = HttpConnectionPool.custom().build();
+        return uploadClient;
+    }
+
     /**
      * Submits a POST of a file on the web
+     * The file is streamed from the disk while being sent, it's never loaded in memory. Can be called from several
+     * threads, each with its own WebUtil
      * @param url
      * @param auth - something like Basic xxx
      * @param fileToPost
@@ -390,8 +405,9 @@ public class WebUtil {
      * @throws MatrixLibException 
      */
     public String postFileToWebSpecialAuth (URL url, String auth, File fileToPost) throws MatrixLibException {
+        CloseableHttpResponse httpResponse = null;
         try {
-            CloseableHttpClient httpClient = HttpClients.custom().build();
+            CloseableHttpClient httpClient = getUploadClient();
             HttpPost post = new HttpPost(url.toURI().toString());
 
             if (customDelay) {
@@ -424,7 +440,7 @@ public class WebUtil {
             
             post.setHeader("Authorization", auth);
             
-            CloseableHttpResponse httpResponse = httpClient.execute(post);
+            httpResponse = httpClient.execute(post);
             
             String ret = EntityUtils.toString(httpResponse.getEntity(),"UTF-8");
             lastStatus = httpResponse.getStatusLine().getStatusCode();
@@ -432,6 +448,8 @@ public class WebUtil {
             return ret;
         } catch (IOException | URISyntaxException ex) {
             throw new MatrixLibException(ex);
+        } finally {
+            HttpConnectionPool.release(httpResponse);
         }
     }
 
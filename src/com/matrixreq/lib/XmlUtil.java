@@ -316,28 +316,15 @@ public class XmlUtil {
     }
 
     /**
-     * This function can load an xml file or one stored in a zip, provided the zip only has one file in it
+     * This function can load an xml file or one stored in a zip, provided the zip only has one file in it, or in a
+     * gzip, without extracting it to disk
      * @param fileName
      * @return
      * @throws XmlUtilException
      */
     public static Document loadXmlFileFromXmlOrZip(String fileName) throws XmlUtilException {
-        File fXmlFile = new File(fileName);
-        if (fXmlFile.exists())
-            return loadXmlFile(fXmlFile);
-        File fZipFile = new File(fileName.replace(".xml", "." + XDocument.XML_ZIP_EXTENSION));
-        if (! fZipFile.exists()) 
-            throw new XmlUtilException();
-        try {
-            String tempFolder = FileUtil.createTempFolder("unzip");
-            ZipUtil.unzipFile(fZipFile, new File(tempFolder), null);
-            ArrayList<String> listFiles = FileUtil.listFiles(tempFolder, null);
-            if (listFiles == null || listFiles.size() != 1)
-                throw new Exception("No files in that zip");
-            fXmlFile = new File(tempFolder, listFiles.get(0));
-            Document ret = loadXmlFile(fXmlFile);
-            FileUtil.removeFolderSafe(tempFolder);
-            return ret;
+        try (InputStream in = XDocument.openXmlFileFromXmlOrZip(fileName)) {
+            return XDocument.loadXml(in);
         }
         catch (Exception ex) {
             throw new XmlUtilException();
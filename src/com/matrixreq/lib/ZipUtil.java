@@ -17,8 +17,17 @@
 package com.matrixreq.lib;
 
 import static com.matrixreq.lib.FileUtil.runOnWindows;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import com.matrixreq.lib.ExecUtil.ExecException;
 
@@ -33,6 +42,97 @@ import org.slf4j.Logger;
  * @author Yves
  */
 public class ZipUtil {
+
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Tells if a file is a zip or a gzip file, from its first bytes (not from its extension)
+     * @param file
+     * @return true for a zip (.zip, .xmlz) or gzip (.gz) file
+     * @throws MatrixLibException
+     */
+    public static boolean isCompressed(File file) throws MatrixLibException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] magic = new byte[4];
+            int read = in.readNBytes(magic, 0, magic.length);
+            return isZip(magic, read) || isGzip(magic, read);
+        } catch (IOException ex) {
+            throw new MatrixLibException("Can't read " + file.getAbsolutePath() + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Opens the content of a file without extracting anything to disk: for a zip, the only file it contains (a zip
+     * with several files is refused), for a gzip the uncompressed data, otherwise the file itself
+     * @param file
+     * @return a stream to close by the caller
+     * @throws MatrixLibException
+     */
+    public static InputStream openUncompressed(File file) throws MatrixLibException {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE);
+            byte[] magic = new byte[4];
+            in.mark(magic.length);
+            int read = in.readNBytes(magic, 0, magic.length);
+            in.reset();
+            if (isGzip(magic, read))
+                return new BufferedInputStream(new GZIPInputStream(in, STREAM_BUFFER_SIZE), STREAM_BUFFER_SIZE);
+            if (! isZip(magic, read))
+                return in;
+            String single = getSingleFile(file);
+            ZipInputStream zip = new ZipInputStream(in);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                if (entry.getName().equals(single))
+                    return new BufferedInputStream(zip, STREAM_BUFFER_SIZE);
+            }
+            throw new MatrixLibException("No files in that zip: " + file.getAbsolutePath());
+        } catch (IOException | MatrixLibException ex) {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+            if (ex instanceof MatrixLibException)
+                throw (MatrixLibException) ex;
+            throw new MatrixLibException("Can't open " + file.getAbsolutePath() + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Reads the central directory of a zip, which is at its end, without reading the entries themselves
+     * @param file
+     * @return the name of the only file in the zip, folders and the resource forks added by macOS aside
+     * @throws IOException
+     * @throws MatrixLibException if the zip holds no file or more than one
+     */
+    private static String getSingleFile(File file) throws IOException, MatrixLibException {
+        List<String> files = new ArrayList<>();
+        try (java.util.zip.ZipFile zipFile = new java.util.zip.ZipFile(file)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (! entry.isDirectory() && ! entry.getName().startsWith("__MACOSX/"))
+                    files.add(entry.getName());
+            }
+        }
+        if (files.isEmpty())
+            throw new MatrixLibException("No files in that zip: " + file.getAbsolutePath());
+        if (files.size() > 1)
+            throw new MatrixLibException("More than one file in that zip: " + file.getAbsolutePath() + " " + files);
+        return files.get(0);
+    }
+
+    private static boolean isZip(byte[] magic, int read) {
+        return read >= 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4;
+    }
+
+    private static boolean isGzip(byte[] magic, int read) {
+        return read >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b;
+    }
+
     /**
      * Create a zip with an array of files
      * @param logger may be null
@@ -0,0 +1,204 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+
+/**
+ * Runs the REST calls of a conversion as a graph of tasks: a task starts once all the tasks it depends on are done,
+ * and up to parallelism tasks run at the same time.
+ *
+ * The children of a folder (sub folders and items) are added with addChild: they depend on the folder and on the
+ * previous child of the same folder, so they are created one after the other in the order they were added and keep
+ * that order in Matrix, while different folders fill in parallel. Among the ready tasks the one added first runs
+ * first, so with a parallelism of 1 the tasks run in the order they were added.
+ *
+ * A task can only depend on tasks added before it, so the graph has no cycle. A task that fails with an exception is
+ * reported and its dependents still run: they must handle a missing parent themselves. An Error (out of memory...)
+ * stops the run: the running tasks finish, no other starts, and run throws it.
+ */
+public class ConversionScheduler {
+
+    /**
+     * The work of a node, typically one or a few REST calls
+     */
+    @FunctionalInterface
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    public static class Node implements Comparable<Node> {
+        private final int sequence;
+        private final String name;
+        private final Task task;
+        private final List<Node> dependents = new ArrayList<>();
+        private int pending = 0;
+
+        Node(int sequence, String name, Task task) {
+            this.sequence = sequence;
+            this.name = name;
+            this.task = task;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public int compareTo(Node other) {
+            return Integer.compare(sequence, other.sequence);
+        }
+    }
+
+    // stops a worker thread
+    private static final Node END = new Node(-1, "end", null);
+
+    private final List<Node> nodes = new ArrayList<>();
+    // last child added to each folder, the next child of the folder depends on it
+    private final Map<Object, Node> lastChild = new HashMap<>();
+    private final PriorityBlockingQueue<Node> ready = new PriorityBlockingQueue<>();
+    private int remaining;
+    private int failed = 0;
+    private int nbWorkers;
+    // the Error that stopped the run, null while it runs
+    private Error fatal = null;
+
+    /**
+     * Adds a task
+     * @param name for the error messages
+     * @param task
+     * @param dependencies tasks that must be done before this one, null ones are ignored
+     * @return the node of the task
+     */
+    public synchronized Node add(String name, Task task, Node... dependencies) {
+        Node node = new Node(nodes.size(), name, task);
+        for (Node dependency : dependencies) {
+            if (dependency != null) {
+                dependency.dependents.add(node);
+                node.pending++;
+            }
+        }
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Adds a task creating a child of a folder: it runs after the folder's node, and after the children of the
+     * same folder added before it
+     * @param folder key of the folder (the Polarion heading, or the Matrix root folder)
+     * @param folderNode node creating the folder, null if the folder already exists
+     * @param name
+     * @param task
+     * @return the node of the task
+     */
+    public synchronized Node addChild(Object folder, Node folderNode, String name, Task task) {
+        Node node = add(name, task, folderNode, lastChild.get(folder));
+        lastChild.put(folder, node);
+        return node;
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Runs all the tasks and waits until they're done. Can only be called once
+     * @param parallelism number of tasks running at the same time
+     * @return the number of tasks that failed
+     * @throws InterruptedException
+     * @throws Error the Error of a task, which stopped the run
+     */
+    public int run(int parallelism) throws InterruptedException {
+        synchronized (this) {
+            remaining = nodes.size();
+            failed = 0;
+            if (remaining == 0)
+                return 0;
+            nbWorkers = Math.max(1, parallelism);
+            for (Node node : nodes)
+                if (node.pending == 0)
+                    ready.add(node);
+        }
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < nbWorkers; i++) {
+            Thread worker = new Thread(this::work, "conversion-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            for (Thread worker : workers)
+                worker.join();
+        } finally {
+            for (Thread worker : workers)
+                worker.interrupt();
+        }
+        synchronized (this) {
+            if (fatal != null)
+                throw fatal;
+            return failed;
+        }
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                Node node = ready.take();
+                if (node == END)
+                    return;
+                try {
+                    node.task.run();
+                } catch (Exception ex) {
+                    System.out.println("Failed: " + node.name + ": " + ex.getMessage());
+                    ex.printStackTrace();
+                    synchronized (this) {
+                        failed++;
+                    }
+                } catch (Error err) {
+                    stop(node, err);
+                    return;
+                }
+                done(node);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void stop(Node node, Error err) {
+        System.out.println("Stopped at " + node.name + ": " + err);
+        if (fatal == null)
+            fatal = err;
+        // END comes before the other ready tasks: each worker stops after its current task
+        for (int i = 0; i < nbWorkers; i++)
+            ready.add(END);
+    }
+
+    private synchronized void done(Node node) {
+        for (Node dependent : node.dependents)
+            if (--dependent.pending == 0)
+                ready.add(dependent);
+        remaining--;
+        if (remaining == 0)
+            for (int i = 0; i < nbWorkers; i++)
+                ready.add(END);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import com.matrixreq.lib.StringUtil;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What a previous run created in Matrix: for each Polarion id (work item or heading), the Matrix id and the hash of
+ * the content it was created from. Stored as lines polarionId|matrixId|hash.
+ *
+ * A re-run with the same state only updates the items whose hash changed and only adds the new ones.
+ */
+public class ConversionState {
+
+    public static class Entry {
+        public final String matrixId;
+        public final String hash;
+
+        public Entry(String matrixId, String hash) {
+            this.matrixId = matrixId;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * SHA-256 over the parts of an item. Each part is length prefixed so "ab"+"c" and "a"+"bc" differ
+     */
+    public static class ContentHash {
+        private final MessageDigest digest;
+
+        public ContentHash() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        public ContentHash add(String value) {
+            byte[] bytes = (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+            addLength(value == null ? -1 : bytes.length);
+            digest.update(bytes);
+            return this;
+        }
+
+        /**
+         * Adds the content of a file, or a marker if it doesn't exist
+         * @param file
+         * @return this
+         * @throws IOException
+         */
+        public ContentHash addFile(File file) throws IOException {
+            if (! file.exists()) {
+                addLength(-1);
+                return this;
+            }
+            addLength(file.length());
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = new FileInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) > 0)
+                    digest.update(buffer, 0, read);
+            }
+            return this;
+        }
+
+        private void addLength(long length) {
+            for (int shift = 56; shift >= 0; shift -= 8)
+                digest.update((byte) (length >>> shift));
+        }
+
+        public String getHash() {
+            return StringUtil.byteArray2Hex(digest.digest());
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * @param fileName the state file, loaded if it exists
+     * @throws IOException
+     */
+    public ConversionState(String fileName) throws IOException {
+        file = new File(fileName);
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null)
+                    parseLine(line);
+            }
+        }
+    }
+
+    private void parseLine(String line) {
+        String[] parts = line.split("\\|", -1);
+        if (parts.length == 3 && ! parts[0].isEmpty() && ! parts[1].isEmpty())
+            entries.put(parts[0], new Entry(parts[1], parts[2]));
+    }
+
+    private static String formatLine(String polarionId, Entry entry) {
+        return polarionId + "|" + entry.matrixId + "|" + entry.hash;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param polarionId
+     * @return what was created for polarionId, null if nothing
+     */
+    public synchronized Entry get(String polarionId) {
+        return entries.get(polarionId);
+    }
+
+    /**
+     * @param polarionId
+     * @param hash
+     * @return true if polarionId was converted before from the same content
+     */
+    public synchronized boolean isUnchanged(String polarionId, String hash) {
+        Entry entry = entries.get(polarionId);
+        return entry != null && entry.hash.equals(hash);
+    }
+
+    public synchronized void put(String polarionId, String matrixId, String hash) {
+        entries.put(polarionId, new Entry(matrixId, hash == null ? "" : hash));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the whole state to a temp file then replaces the state file with it
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writer.write(formatLine(entry.getKey(), entry.getValue()));
+                writer.write("\n");
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Writes the content of a Polarion &lt;description&gt; read with StAX as the HTML of a Matrix rich text field. The
+ * description and html wrappers and the default xmlns declarations are dropped while writing, so no Transformer round
+ * trip nor string replacements are needed afterwards. Like the Transformer, a prefixed element or attribute comes
+ * with the xmlns:prefix declaration it needs.
+ *
+ * Each thread reuses its own StringBuilder, so the parallel reader doesn't allocate a buffer per description.
+ */
+public class DescriptionSerializer {
+
+    private static final Set<String> VOID_ELEMENTS = new HashSet<>(Arrays.asList(
+            "area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param", "source", "track", "wbr"));
+
+    // a buffer that grew past this size (one huge description) isn't kept for the next ones
+    private static final int MAX_KEPT_CAPACITY = 1 << 20;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(1 << 12));
+
+    private DescriptionSerializer() {
+    }
+
+    /**
+     * Reads the content of the current description start element, returns on its end element
+     * @param reader positioned on the description start element
+     * @return the HTML of the description content
+     * @throws XMLStreamException
+     */
+    public static String toHtml(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder html = buffer();
+        // the prefixes declared by each element written and not closed yet
+        Deque<Set<String>> declared = new ArrayDeque<>();
+        int level = 0;
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                level++;
+                if (level == 1 && "html".equals(reader.getLocalName()))
+                    continue;
+                html.append('<');
+                qualifiedName(html, reader.getPrefix(), reader.getLocalName());
+                Set<String> prefixes = prefixesToDeclare(reader, declared);
+                for (String prefix : prefixes) {
+                    html.append(" xmlns:").append(prefix).append("=\"");
+                    escape(html, reader.getNamespaceURI(prefix), true);
+                    html.append('"');
+                }
+                declared.push(prefixes);
+                for (int att = 0; att < reader.getAttributeCount(); att++) {
+                    html.append(' ');
+                    qualifiedName(html, reader.getAttributePrefix(att), reader.getAttributeLocalName(att));
+                    html.append("=\"");
+                    escape(html, reader.getAttributeValue(att), true);
+                    html.append('"');
+                }
+                html.append('>');
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (level == 0)
+                    break;
+                level--;
+                if (level == 0 && "html".equals(reader.getLocalName()))
+                    continue;
+                declared.pop();
+                if (! VOID_ELEMENTS.contains(reader.getLocalName())) {
+                    html.append("</");
+                    qualifiedName(html, reader.getPrefix(), reader.getLocalName());
+                    html.append('>');
+                }
+            }
+            else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE) {
+                escape(html, reader.getText(), false);
+            }
+        }
+        return done(html);
+    }
+
+    private static StringBuilder buffer() {
+        StringBuilder ret = BUFFER.get();
+        ret.setLength(0);
+        return ret;
+    }
+
+    private static String done(StringBuilder html) {
+        int start = 0;
+        int end = html.length();
+        while (start < end && html.charAt(start) <= ' ')
+            start++;
+        while (end > start && html.charAt(end - 1) <= ' ')
+            end--;
+        String ret = html.substring(start, end);
+        if (html.capacity() > MAX_KEPT_CAPACITY)
+            BUFFER.remove();
+        return ret;
+    }
+
+    /**
+     * @return the prefixes declared on the current element, and the ones it uses that no written ancestor declares
+     */
+    private static Set<String> prefixesToDeclare(XMLStreamReader reader, Deque<Set<String>> declared) {
+        Set<String> ret = new LinkedHashSet<>();
+        for (int ns = 0; ns < reader.getNamespaceCount(); ns++)
+            addPrefix(ret, declared, reader.getNamespacePrefix(ns), true);
+        addPrefix(ret, declared, reader.getPrefix(), false);
+        for (int att = 0; att < reader.getAttributeCount(); att++)
+            addPrefix(ret, declared, reader.getAttributePrefix(att), false);
+        return ret;
+    }
+
+    private static void addPrefix(Set<String> prefixes, Deque<Set<String>> declared, String prefix, boolean declaredHere) {
+        // the default namespace is dropped, xml is never declared
+        if (prefix == null || prefix.isEmpty() || "xml".equals(prefix))
+            return;
+        if (! declaredHere)
+            for (Set<String> ancestor : declared)
+                if (ancestor.contains(prefix))
+                    return;
+        prefixes.add(prefix);
+    }
+
+    private static void qualifiedName(StringBuilder html, String prefix, String localName) {
+        if (prefix != null && ! prefix.isEmpty())
+            html.append(prefix).append(':');
+        html.append(localName);
+    }
+
+    private static void escape(StringBuilder out, String text, boolean attribute) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '"':
+                    out.append(attribute ? "&quot;" : "\"");
+                    break;
+                default:
+                    out.append(c);
+                    break;
+            }
+        }
+    }
+}
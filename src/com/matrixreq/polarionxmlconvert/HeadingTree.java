@@ -0,0 +1,152 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import com.matrixreq.polarionxmlconvert.PolarionXmlConvert.LinkedWorkItem;
+import com.matrixreq.polarionxmlconvert.PolarionXmlConvert.WorkItem;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The heading hierarchy of the export (items linked with the parent role to a heading) and the Matrix folders it
+ * turns into. Each heading is resolved to a folder once: placing an item is a lookup of its immediate heading, and
+ * the list of folders to create is known before any REST call.
+ *
+ * The rules are the ones of the former per item walk: folders are created from the top heading down, in the
+ * category of the first item needing them, and a productRequirement (SYREQ) heading with outline 2 switches the
+ * rest of the branch to PREQ.
+ */
+public class HeadingTree {
+
+    /**
+     * A folder to create for a heading, under the folder of parent or under the root folder of category
+     */
+    public static class FolderToCreate {
+        public final WorkItem heading;
+        public final FolderToCreate parent;
+        public final String category;
+
+        FolderToCreate(WorkItem heading, FolderToCreate parent, String category) {
+            this.heading = heading;
+            this.parent = parent;
+            this.category = category;
+        }
+
+        public String getRootFolder() {
+            return "F-" + category + "-1";
+        }
+    }
+
+    /**
+     * Where a work item goes: the folder of its immediate heading, in category
+     */
+    public static class Placement {
+        public final WorkItem workItem;
+        public final String category;
+        // null if the item has no heading parent
+        public final WorkItem heading;
+
+        Placement(WorkItem workItem, String category, WorkItem heading) {
+            this.workItem = workItem;
+            this.category = category;
+            this.heading = heading;
+        }
+    }
+
+    private static final WorkItem NO_HEADING = new WorkItem(null, null, null, null, null, -1);
+
+    private final Map<WorkItem, WorkItem> parentHeadings = new HashMap<>();
+    private final Map<WorkItem, FolderToCreate> folders = new HashMap<>();
+    private final List<FolderToCreate> plan = new ArrayList<>();
+
+    /**
+     * @param workItem
+     * @return the first heading the item is linked to with the parent role, null if none
+     */
+    public WorkItem getParentHeading(WorkItem workItem) {
+        WorkItem ret = parentHeadings.get(workItem);
+        if (ret == null) {
+            ret = NO_HEADING;
+            for (LinkedWorkItem parent : workItem.linkedItems) {
+                if (parent.role.equals("parent") && parent.workItem.type.equals("heading")) {
+                    ret = parent.workItem;
+                    break;
+                }
+            }
+            parentHeadings.put(workItem, ret);
+        }
+        return ret == NO_HEADING ? null : ret;
+    }
+
+    /**
+     * Finds the folder of a work item, planning the creation of the folders of its headings if not done yet
+     * @param workItem
+     * @param category Matrix category of the item
+     * @return the placement of the item
+     */
+    public Placement place(WorkItem workItem, String category) {
+        WorkItem immediateParent = getParentHeading(workItem);
+        if (immediateParent == null)
+            return new Placement(workItem, category, null);
+        if (! folders.containsKey(immediateParent)) {
+            // headings without a folder yet, from the immediate parent up to the first one that has a folder
+            List<WorkItem> missing = new ArrayList<>();
+            Set<WorkItem> seen = new HashSet<>();
+            WorkItem current = immediateParent;
+            while (current != null && ! folders.containsKey(current) && seen.add(current)) {
+                missing.add(current);
+                current = getParentHeading(current);
+            }
+            FolderToCreate parentFolder = current != null ? folders.get(current) : null;
+            Collections.reverse(missing);
+            for (WorkItem heading : missing) {
+                // hike
+                if (category.equals("SYREQ") && heading.outlineNumber.equals("2")) {
+                    category = "PREQ";
+                    parentFolder = null;
+                }
+                FolderToCreate folder = new FolderToCreate(heading, parentFolder, category);
+                folders.put(heading, folder);
+                plan.add(folder);
+                parentFolder = folder;
+            }
+        }
+        if (category.equals("SYREQ") && immediateParent.outlineNumber.equals("2"))
+            category = "PREQ";
+        return new Placement(workItem, category, immediateParent);
+    }
+
+    /**
+     * @param heading
+     * @return the folder planned for the heading, null if none
+     */
+    public FolderToCreate getFolder(WorkItem heading) {
+        return folders.get(heading);
+    }
+
+    /**
+     * @return the folders to create, parents before children
+     */
+    public List<FolderToCreate> getFolderPlan() {
+        return Collections.unmodifiableList(plan);
+    }
+}
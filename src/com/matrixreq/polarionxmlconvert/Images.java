@@ -36,6 +36,7 @@ public class Images {
     private String picFolder;
     private String docInput;
     private String itemTracker;
+    private UploadRegistry uploads;
 
     private String urlToFileName(String url) {
         return StringUtil.urlEncode(url.replace("https://polarion.smdpd.com/polarion/",""));
@@ -57,6 +58,13 @@ public class Images {
         this.itemTracker = itemTracker;
     }    
 
+    /**
+     * @param uploads the pictures already uploaded, reused instead of uploading them again
+     */
+    public void setUploadRegistry(UploadRegistry uploads) {
+        this.uploads = uploads;
+    }
+
     List<String> urls = new ArrayList<>();
     public void reloadAllImages() {
         ArrayList<String> listFiles = FileUtil.listFiles(picFolder, null);
@@ -81,12 +89,25 @@ public class Images {
         return workItems;
     }
 
+    /**
+     * @param htmlDescription
+     * @return the local files of the pictures used in the description, in the order convertImages uploads them
+     */
+    public List<File> getPictureFiles(String htmlDescription) {
+        List<File> ret = new ArrayList<>();
+        for (String url: getUrls())
+            if (htmlDescription.contains(url))
+                ret.add(new File(picFolder + "/" + urlToFileName(url)));
+        return ret;
+    }
+
     public String convertImages(MatrixRestClient cli, String project, String htmlDescription) throws MatrixLibException {
         for (String url: getUrls())
         if (htmlDescription.contains(url)) {
             System.out.println("Picture found: " + url);
             String imageFile = picFolder + "/" + urlToFileName(url);
-            FileAndKey upload = cli.uploadFile(new File(imageFile), project);
+            FileAndKey upload = uploads != null ? uploads.upload(cli, project, new File(imageFile))
+                : cli.uploadFile(new File(imageFile), project);
             String newUrl = cli.getBaseUrl() + "/" + project + "/file/" + upload.fileId + "?key=" + upload.key;
             htmlDescription = htmlDescription.replace(url, newUrl);
             System.out.println("\t--> " + newUrl);
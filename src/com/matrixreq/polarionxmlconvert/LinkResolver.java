@@ -0,0 +1,310 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Resolves the linkedWorkItems of an export without keeping an id to work item map in memory.
+ *
+ * Pass 1 (while streaming the export): every work item (id, index) and every edge (source index, role, target id)
+ * is buffered and, when the buffer is full, sorted and written to a run file.
+ * Pass 2 (resolve): the edge runs sorted by target id are merged and joined with the item runs sorted by id,
+ * edges to unknown items are dropped, and the resolved edges are merged back in their original order, so each
+ * item gets its links in the order of the export. Memory stays bounded by maxInMemory records per sort.
+ *
+ * When several items have the same id, the links go to the last one added, like with a map of the items by id.
+ */
+public class LinkResolver implements Closeable {
+
+    public static final int DEFAULT_MAX_IN_MEMORY = 200000;
+
+    public interface ResolvedLinkHandler {
+        /**
+         * Called once per resolved edge, in the order the edges were added
+         * @param source index of the item holding the link
+         * @param derived true for linkedWorkItemsDerived, false for linkedWorkItems
+         * @param role
+         * @param target index of the linked item
+         * @throws IOException
+         */
+        void link(int source, boolean derived, String role, int target) throws IOException;
+    }
+
+    /**
+     * Returns the records of a sorted sequence one by one, null at the end
+     */
+    private interface Cursor<T> {
+        T next() throws IOException;
+    }
+
+    private static class Node {
+        final String id;
+        final int index;
+
+        Node(String id, int index) {
+            this.id = id;
+            this.index = index;
+        }
+    }
+
+    private static class Edge {
+        final long seq;
+        final int source;
+        final boolean derived;
+        final String role;
+        final String target;
+        int targetIndex = -1;
+
+        Edge(long seq, int source, boolean derived, String role, String target) {
+            this.seq = seq;
+            this.source = source;
+            this.derived = derived;
+            this.role = role;
+            this.target = target;
+        }
+    }
+
+    /**
+     * External sort: values are buffered, sorted and spilled to temp run files, then merged with a priority queue
+     */
+    private abstract static class SortedRuns<T> implements Closeable {
+        private final Comparator<T> order;
+        private final int maxInMemory;
+        private final List<T> buffer = new ArrayList<>();
+        private final List<File> runs = new ArrayList<>();
+        private final List<DataInputStream> openRuns = new ArrayList<>();
+
+        SortedRuns(Comparator<T> order, int maxInMemory) {
+            this.order = order;
+            this.maxInMemory = maxInMemory;
+        }
+
+        abstract void write(DataOutputStream out, T value) throws IOException;
+
+        abstract T read(DataInputStream in) throws IOException;
+
+        void add(T value) throws IOException {
+            buffer.add(value);
+            if (buffer.size() >= maxInMemory)
+                spill();
+        }
+
+        private void spill() throws IOException {
+            buffer.sort(order);
+            File run = File.createTempFile("links", ".run");
+            run.deleteOnExit();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+                for (T value: buffer) {
+                    out.writeBoolean(true);
+                    write(out, value);
+                }
+                out.writeBoolean(false);
+            }
+            runs.add(run);
+            buffer.clear();
+        }
+
+        private Cursor<T> openRun(File run) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+            openRuns.add(in);
+            return () -> in.readBoolean() ? read(in) : null;
+        }
+
+        /**
+         * @return all the values added so far, in order
+         */
+        Cursor<T> merge() throws IOException {
+            if (runs.isEmpty()) {
+                // everything fits in memory
+                buffer.sort(order);
+                List<T> sorted = new ArrayList<>(buffer);
+                buffer.clear();
+                int[] position = {0};
+                return () -> position[0] < sorted.size() ? sorted.get(position[0]++) : null;
+            }
+            if (! buffer.isEmpty())
+                spill();
+            class Head {
+                final T value;
+                final Cursor<T> cursor;
+                Head(T value, Cursor<T> cursor) {
+                    this.value = value;
+                    this.cursor = cursor;
+                }
+            }
+            PriorityQueue<Head> heads = new PriorityQueue<>(runs.size(), (a, b) -> order.compare(a.value, b.value));
+            for (File run: runs) {
+                Cursor<T> cursor = openRun(run);
+                T first = cursor.next();
+                if (first != null)
+                    heads.add(new Head(first, cursor));
+            }
+            return () -> {
+                Head head = heads.poll();
+                if (head == null)
+                    return null;
+                T following = head.cursor.next();
+                if (following != null)
+                    heads.add(new Head(following, head.cursor));
+                return head.value;
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (DataInputStream in: openRuns)
+                in.close();
+            openRuns.clear();
+            for (File run: runs)
+                run.delete();
+            runs.clear();
+            buffer.clear();
+        }
+    }
+
+    private static class NodeRuns extends SortedRuns<Node> {
+        NodeRuns(int maxInMemory) {
+            // for the same id the last item added comes first, it's the one the edges are joined with
+            super(Comparator.comparing((Node n) -> n.id).thenComparing((Node n) -> n.index, Comparator.reverseOrder()), maxInMemory);
+        }
+
+        @Override
+        void write(DataOutputStream out, Node value) throws IOException {
+            out.writeUTF(value.id);
+            out.writeInt(value.index);
+        }
+
+        @Override
+        Node read(DataInputStream in) throws IOException {
+            return new Node(in.readUTF(), in.readInt());
+        }
+    }
+
+    private static class EdgeRuns extends SortedRuns<Edge> {
+        EdgeRuns(Comparator<Edge> order, int maxInMemory) {
+            super(order, maxInMemory);
+        }
+
+        @Override
+        void write(DataOutputStream out, Edge value) throws IOException {
+            out.writeLong(value.seq);
+            out.writeInt(value.source);
+            out.writeBoolean(value.derived);
+            out.writeUTF(value.role);
+            out.writeUTF(value.target);
+            out.writeInt(value.targetIndex);
+        }
+
+        @Override
+        Edge read(DataInputStream in) throws IOException {
+            Edge ret = new Edge(in.readLong(), in.readInt(), in.readBoolean(), in.readUTF(), in.readUTF());
+            ret.targetIndex = in.readInt();
+            return ret;
+        }
+    }
+
+    private final int maxInMemory;
+    private final NodeRuns nodes;
+    private final EdgeRuns edges;
+    private long nbEdges = 0;
+
+    public LinkResolver() {
+        this(DEFAULT_MAX_IN_MEMORY);
+    }
+
+    /**
+     * @param maxInMemory maximum number of items or edges sorted in memory before spilling to disk
+     */
+    public LinkResolver(int maxInMemory) {
+        this.maxInMemory = maxInMemory;
+        nodes = new NodeRuns(maxInMemory);
+        edges = new EdgeRuns(Comparator.comparing((Edge e) -> e.target).thenComparingLong(e -> e.seq), maxInMemory);
+    }
+
+    /**
+     * Declares a work item that links can point to
+     * @param id Polarion work item id
+     * @param index index of the item (in the WorkItemStore), growing with each item added
+     * @throws IOException
+     */
+    public void addItem(String id, int index) throws IOException {
+        nodes.add(new Node(id, index));
+    }
+
+    /**
+     * Adds one linkedWorkItem of an item
+     * @param source index of the item holding the link
+     * @param derived true for linkedWorkItemsDerived
+     * @param role
+     * @param targetId Polarion id of the linked item, it doesn't need to be known yet
+     * @throws IOException
+     */
+    public void addLink(int source, boolean derived, String role, String targetId) throws IOException {
+        edges.add(new Edge(nbEdges++, source, derived, role, targetId));
+    }
+
+    /**
+     * Joins the edges with the items. Links to items that were never added are dropped
+     * @param handler receives the resolved edges in the order they were added
+     * @throws IOException
+     */
+    public void resolve(ResolvedLinkHandler handler) throws IOException {
+        try (EdgeRuns resolved = new EdgeRuns(Comparator.comparingLong((Edge e) -> e.seq), maxInMemory)) {
+            Cursor<Node> nodeCursor = nodes.merge();
+            Cursor<Edge> edgeCursor = edges.merge();
+            Node node = nodeCursor.next();
+            Edge edge = edgeCursor.next();
+            while (node != null && edge != null) {
+                int compare = edge.target.compareTo(node.id);
+                if (compare < 0) {
+                    edge = edgeCursor.next();
+                }
+                else if (compare > 0) {
+                    node = nodeCursor.next();
+                }
+                else {
+                    edge.targetIndex = node.index;
+                    resolved.add(edge);
+                    edge = edgeCursor.next();
+                }
+            }
+            Cursor<Edge> ordered = resolved.merge();
+            Edge next;
+            while ((next = ordered.next()) != null)
+                handler.link(next.source, next.derived, next.role, next.targetIndex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        nodes.close();
+        edges.close();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import java.util.Arrays;
+
+/**
+ * A Polarion outline number (3.2-1) parsed once into its levels [3,2,1]. The first 4 levels are also packed in a
+ * long (16 bits each, level + 1 so that a missing level sorts first), so most comparisons are a single long compare
+ * and none of them allocates.
+ *
+ * Parsing follows the former outlineToInts: '.' and '-' both separate levels, trailing empty levels are ignored and
+ * a level that isn't a number counts as 0.
+ */
+public final class OutlineKey implements Comparable<OutlineKey> {
+
+    private static final int PACKED_LEVELS = 4;
+    private static final int PACKED_BITS = 16;
+    private static final int PACKED_MAX = (1 << PACKED_BITS) - 1;
+
+    private final int[] levels;
+    private final long packed;
+    // false if a packed level was too large: packed can't be used to order this key
+    private final boolean packedExact;
+
+    private OutlineKey(int[] levels) {
+        this.levels = levels;
+        long pack = 0;
+        boolean exact = true;
+        for (int i = 0; i < PACKED_LEVELS; i++) {
+            long level = i < levels.length ? levels[i] + 1L : 0;
+            if (level > PACKED_MAX) {
+                exact = false;
+                level = PACKED_MAX;
+            }
+            pack = (pack << PACKED_BITS) | level;
+        }
+        packed = pack;
+        packedExact = exact;
+    }
+
+    /**
+     * @param outline an outline number like 3.2-1
+     * @return the parsed key
+     */
+    public static OutlineKey parse(String outline) {
+        int[] ret = new int[outline.length() + 1];
+        int count = 0;
+        int nonEmpty = 0;
+        int start = 0;
+        for (int i = 0; i <= outline.length(); i++) {
+            if (i == outline.length() || outline.charAt(i) == '.' || outline.charAt(i) == '-') {
+                ret[count++] = parseLevel(outline, start, i);
+                if (i > start)
+                    nonEmpty = count;
+                start = i + 1;
+            }
+        }
+        // like String.split: trailing empty levels are dropped, but "" is still one level
+        if (outline.isEmpty())
+            nonEmpty = 1;
+        return new OutlineKey(Arrays.copyOf(ret, nonEmpty));
+    }
+
+    // Same as StringUtil.stringToIntZero on the substring
+    private static int parseLevel(String outline, int start, int end) {
+        if (start < end && outline.charAt(start) == '+')
+            start++;
+        if (start >= end)
+            return 0;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = outline.charAt(i);
+            if (c < '0' || c > '9')
+                return 0;
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE)
+                return 0;
+        }
+        return (int) value;
+    }
+
+    public int depth() {
+        return levels.length;
+    }
+
+    /**
+     * @param nbLevels
+     * @return the first nbLevels levels joined with dots, "" if nbLevels &lt;= 0
+     */
+    public String header(int nbLevels) {
+        StringBuilder ret = new StringBuilder();
+        for (int i = 0; i < nbLevels && i < levels.length; i++) {
+            if (i > 0)
+                ret.append('.');
+            ret.append(levels[i]);
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Ordering by levels, a key comes before the keys below it (3.2 &lt; 3.2.1)
+     */
+    @Override
+    public int compareTo(OutlineKey other) {
+        if (packedExact && other.packedExact && packed != other.packed)
+            return Long.compareUnsigned(packed, other.packed) < 0 ? -1 : 1;
+        int ret = compareLevels(other);
+        return ret != 0 ? ret : levels.length - other.levels.length;
+    }
+
+    /**
+     * Ordering by levels, a key comes after the keys below it (3.2.1 &lt; 3.2)
+     * @param other
+     * @return a negative value, zero or a positive value like compareTo
+     */
+    public int compareDeepestFirst(OutlineKey other) {
+        int ret = compareLevels(other);
+        return ret != 0 ? ret : other.levels.length - levels.length;
+    }
+
+    private int compareLevels(OutlineKey other) {
+        int len = Math.min(levels.length, other.levels.length);
+        for (int i = 0; i < len; i++) {
+            if (levels[i] != other.levels[i])
+                return Integer.compare(levels[i], other.levels[i]);
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof OutlineKey && Arrays.equals(levels, ((OutlineKey) obj).levels);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(levels);
+    }
+
+    @Override
+    public String toString() {
+        return header(levels.length);
+    }
+}
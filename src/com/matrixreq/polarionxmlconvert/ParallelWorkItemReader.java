@@ -0,0 +1,278 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import com.matrixreq.xml.XmlException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parses a Polarion export on several cores. The file is memory mapped and cut into chunks of about chunkSize bytes,
+ * each chunk starting on a top level &lt;workItem&gt;. Chunks are parsed by WorkItemReader on a fork-join pool and
+ * returned in file order, so next() gives exactly the same sequence as a single WorkItemReader.
+ *
+ * A top level workItem is recognized as a &lt;workItem that directly follows the root start tag or a &lt;/workItem&gt;:
+ * the workItem elements inside linkedWorkItem are preceded by a role element. Each chunk is parsed as a small
+ * document made of the prolog and root start tag of the file, the chunk and the root end tag, so encoding and
+ * namespace declarations of the root apply to every chunk.
+ */
+public class ParallelWorkItemReader implements WorkItemSource {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+
+    // a mapping can't be larger than 2GB: the file is mapped in segments
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private static final byte[] ITEM_START = "<workItem".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ITEM_END = "</workItem>".getBytes(StandardCharsets.US_ASCII);
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long fileSize;
+    private final ForkJoinPool pool;
+    private final int maxPending;
+    private final long chunkSize;
+
+    private byte[] header;
+    private byte[] footer;
+    private long firstItem;
+    private long endOfItems;
+    private long nbChunks;
+
+    private long nextChunk = 0;
+    private final Deque<ForkJoinTask<List<WorkItemRecord>>> pending = new ArrayDeque<>();
+    private Iterator<WorkItemRecord> current = Collections.emptyIterator();
+
+    /**
+     * Opens a Polarion export file
+     * @param file an uncompressed export, see XDocument.findXmlFileOrZip
+     * @param parallelism number of parsing threads, 0 for the number of processors
+     * @throws XmlException
+     */
+    public ParallelWorkItemReader(File file, int parallelism) throws XmlException {
+        this(file, parallelism, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ParallelWorkItemReader(File file, int parallelism, int chunkSize) throws XmlException {
+        if (parallelism <= 0)
+            parallelism = Runtime.getRuntime().availableProcessors();
+        this.chunkSize = chunkSize;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            fileSize = channel.size();
+            segments = new MappedByteBuffer[(int) ((fileSize + SEGMENT_SIZE - 1) >> SEGMENT_BITS)];
+            for (int i = 0; i < segments.length; i++) {
+                long start = (long) i << SEGMENT_BITS;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, fileSize - start));
+            }
+        } catch (IOException ex) {
+            throw new XmlException(ex.getMessage());
+        }
+        findRoot();
+        pool = new ForkJoinPool(parallelism);
+        // keep a few chunks ahead of the consumer, but not the whole file
+        maxPending = parallelism * 2;
+    }
+
+    @Override
+    public WorkItemRecord next() throws XmlException {
+        while (! current.hasNext()) {
+            while (pending.size() < maxPending && nextChunk < nbChunks) {
+                long chunk = nextChunk++;
+                pending.add(pool.submit(() -> parseChunk(chunk)));
+            }
+            ForkJoinTask<List<WorkItemRecord>> task = pending.poll();
+            if (task == null)
+                return null;
+            try {
+                current = task.get().iterator();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new XmlException(ex.getMessage());
+            } catch (ExecutionException ex) {
+                throw new XmlException(ex.getCause().getMessage());
+            }
+        }
+        return current.next();
+    }
+
+    @Override
+    public void close() throws IOException {
+        pool.shutdownNow();
+        channel.close();
+    }
+
+    private byte byteAt(long position) {
+        return segments[(int) (position >> SEGMENT_BITS)].get((int) (position & (SEGMENT_SIZE - 1)));
+    }
+
+    private boolean matches(long position, byte[] pattern) {
+        if (position + pattern.length > fileSize)
+            return false;
+        for (int i = 0; i < pattern.length; i++) {
+            if (byteAt(position + i) != pattern[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private long skipSpaces(long position) {
+        while (position < fileSize && isSpace(byteAt(position)))
+            position++;
+        return position;
+    }
+
+    // true if a <workItem element (and not <workItems or <workItemX) starts at position
+    private boolean isItemStart(long position) {
+        if (! matches(position, ITEM_START) || position + ITEM_START.length >= fileSize)
+            return false;
+        byte after = byteAt(position + ITEM_START.length);
+        return after == '>' || after == '/' || isSpace(after);
+    }
+
+    /**
+     * Finds the prolog and the root element, the first top level workItem and the end of the last one
+     */
+    private void findRoot() throws XmlException {
+        long position = 0;
+        // skip <?xml ...?>, comments and doctype
+        while (position < fileSize) {
+            if (byteAt(position) == '<' && position + 1 < fileSize) {
+                byte b = byteAt(position + 1);
+                if (b != '?' && b != '!')
+                    break;
+            }
+            position++;
+        }
+        long rootStart = position;
+        long rootNameEnd = rootStart + 1;
+        while (rootNameEnd < fileSize && ! isSpace(byteAt(rootNameEnd)) && byteAt(rootNameEnd) != '>' && byteAt(rootNameEnd) != '/')
+            rootNameEnd++;
+        long rootEnd = rootNameEnd;
+        byte quote = 0;
+        while (rootEnd < fileSize) {
+            byte b = byteAt(rootEnd);
+            if (quote != 0) {
+                if (b == quote)
+                    quote = 0;
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                break;
+            }
+            rootEnd++;
+        }
+        if (rootEnd >= fileSize)
+            throw new XmlException("No root element found");
+        header = copy(0, rootEnd + 1);
+        String rootName = new String(copy(rootStart + 1, rootNameEnd), StandardCharsets.UTF_8);
+        footer = ("</" + rootName + ">").getBytes(StandardCharsets.UTF_8);
+
+        firstItem = skipSpaces(rootEnd + 1);
+        // the items end where the root end tag starts
+        endOfItems = fileSize;
+        while (endOfItems > firstItem && byteAt(endOfItems - 1) != '<')
+            endOfItems--;
+        endOfItems = Math.max(firstItem, endOfItems - 1);
+        if (byteAt(rootEnd - 1) == '/') {
+            // empty export
+            nbChunks = 0;
+            return;
+        }
+        if (! isItemStart(firstItem)) {
+            // unexpected layout: parse everything as a single chunk
+            nbChunks = 1;
+            return;
+        }
+        nbChunks = (endOfItems - firstItem + chunkSize - 1) / chunkSize;
+    }
+
+    /**
+     * @param chunk
+     * @return the start of the first top level workItem that begins at or after the start of the chunk
+     */
+    private long boundary(long chunk) {
+        if (chunk == 0)
+            return firstItem;
+        if (chunk >= nbChunks)
+            return endOfItems;
+        long position = firstItem + chunk * chunkSize;
+        while (position < endOfItems) {
+            if (byteAt(position) == '<' && matches(position, ITEM_END)) {
+                long next = skipSpaces(position + ITEM_END.length);
+                if (isItemStart(next))
+                    return next;
+                position = next;
+            } else {
+                position++;
+            }
+        }
+        return endOfItems;
+    }
+
+    private byte[] copy(long start, long end) {
+        byte[] ret = new byte[(int) (end - start)];
+        int done = 0;
+        while (done < ret.length) {
+            long position = start + done;
+            ByteBuffer segment = segments[(int) (position >> SEGMENT_BITS)].duplicate();
+            segment.position((int) (position & (SEGMENT_SIZE - 1)));
+            int length = Math.min(ret.length - done, segment.remaining());
+            segment.get(ret, done, length);
+            done += length;
+        }
+        return ret;
+    }
+
+    private List<WorkItemRecord> parseChunk(long chunk) throws XmlException, IOException {
+        long start = boundary(chunk);
+        long end = boundary(chunk + 1);
+        List<WorkItemRecord> ret = new ArrayList<>();
+        if (start >= end)
+            return ret;
+        InputStream input = new SequenceInputStream(Collections.enumeration(List.of(
+            new ByteArrayInputStream(header), new ByteArrayInputStream(copy(start, end)), new ByteArrayInputStream(footer))));
+        try (WorkItemReader reader = new WorkItemReader(input)) {
+            WorkItemRecord record;
+            while ((record = reader.next()) != null)
+                ret.add(record);
+        }
+        return ret;
+    }
+}
@@ -17,38 +17,33 @@
 package com.matrixreq.polarionxmlconvert;
 
 import com.opencsv.CSVReader;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import java.util.Stack;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.apache.commons.lang3.StringUtils;
 import org.jsoup.select.Elements;
-import org.w3c.dom.Node;
 
+import com.matrixreq.client.JavaHttpTransport;
 import com.matrixreq.client.matrixrestclient.MatrixRestClient;
-import com.matrixreq.client.matrixrestclient.struct.CategoryAndItems;
+import com.matrixreq.client.matrixrestclient.ProjectMetadataCache;
 import com.matrixreq.client.matrixrestclient.struct.Field;
 import com.matrixreq.client.matrixrestclient.struct.FieldAndValue;
 import com.matrixreq.client.matrixrestclient.struct.FieldAndValueList;
 import com.matrixreq.client.matrixrestclient.struct.ItemAndSerial;
 import com.matrixreq.lib.HtmlUtil;
+import com.matrixreq.lib.MatrixLibException;
 import com.matrixreq.lib.StringUtil;
+import com.matrixreq.lib.ZipUtil;
 import com.matrixreq.xml.XDocument;
-import com.matrixreq.xml.XElement;
 
 /**
  *
@@ -70,12 +65,20 @@ public class PolarionXmlConvert {
         } catch (Exception ex) {
             System.out.println("Error: " + ex.getMessage());
             System.out.println("USAGE: java -jar PolarionXmlConvert.jar --instance=instance --project=project "
-                              + "--token=token --xml=xmlInput.xml --picFolder=folder --globalItemTracker=file.txt "
-                              +" [--type=itemType][--steps=fieldName][--relation=other1,other2][--removeNumbers=1][--replaceDots=1]");
+                              + "--token=token --xml=xmlInput.xml|.xmlz|.zip|.gz --picFolder=folder --globalItemTracker=file.txt "
+                              +" [--type=itemType][--steps=fieldName][--relation=other1,other2][--removeNumbers=1][--replaceDots=1][--parallel=threads][--threads=n][--http2=1][--metadataCache=file.json][--refreshMetadata=1][--state=file.txt][--journal=file.txt][--resume][--uploads=file.txt]");
             System.out.println("   The optional itemType argument is userRequirement to filter items by: <type id=\"userRequirement\" for example");
             System.out.println("   The optional steps is the name of the Matrix field containing the test steps");
             System.out.println("   The optional removeNumbers=1 is for the removal of chapters numbers in titles");
             System.out.println("   The optional replaceDots=1 is for the replacing titles with the first line of text if it contains ...");
+            System.out.println("   The optional parallel parses the xml on several threads (0 or empty for one per processor)");
+            System.out.println("   The optional threads is the number of folders filled in Matrix at the same time (default 1)");
+            System.out.println("   The optional http2=1 sends the requests over HTTP/2 when the server supports it, sharing one connection");
+            System.out.println("   The optional metadataCache file keeps the categories and fields of the project for a day, for the next runs");
+            System.out.println("   The optional refreshMetadata=1 asks the categories and fields of the project again, even if they're cached");
+            System.out.println("   The optional state file keeps what was converted: a re-run only adds new items and updates changed ones");
+            System.out.println("   The optional journal records each folder and item created, --resume continues an interrupted run from it (default xmlInput.journal)");
+            System.out.println("   The optional uploads file records the pictures uploaded by content, they're never uploaded twice, even in the next runs");
             ex.printStackTrace();
         }
     }
@@ -90,10 +93,21 @@ public class PolarionXmlConvert {
     private boolean removeNumbers;
     private boolean replaceDots;
     private MatrixRestClient cli;
-    private XDocument docX;
     private Images images;
     private String itemTypeFilter = null;
     private String stepsField = null;
+    private Integer parseThreads = null;
+    private int restThreads = 1;
+    private boolean http2 = false;
+    private String metadataCacheFile = null;
+    private boolean refreshMetadata = false;
+    private String stateFile = null;
+    private ConversionState state = null;
+    private String journalFile = null;
+    private boolean resume = false;
+    private ResumeJournal journal = null;
+    private String uploadsFile = null;
+    private UploadRegistry uploads = null;
     private List<String> otherRelations = new ArrayList<>();
 
     public static class WorkItem {
@@ -102,30 +116,32 @@ public class PolarionXmlConvert {
         String type;
         String title;
         String outlineNumber;
+        OutlineKey outlineKey;
         String description;
 
-        XElement workItemX;
+        // row of this work item in the WorkItemStore (description and raw links are read from there)
+        int index;
 
         public List<LinkedWorkItem> linkedItems = new ArrayList<>();
         public List<LinkedWorkItem> linkedItemsDerived = new ArrayList<>();
 
-        public WorkItem(String moduleName, String workItemId, String type, String outlineNumber, String title, XElement workItemX) {
+        public WorkItem(String moduleName, String workItemId, String type, String outlineNumber, String title, int index) {
             this.moduleName = moduleName;
             this.workItemId = workItemId;
             this.type = type;
             this.title = title;
             this.outlineNumber = outlineNumber;
-            this.workItemX = workItemX;
+            this.index = index;
         }
 
-        void WorkItem(String moduleName, String workItemId, String type, String title, String outlineNumber, String description, XElement workItemX) {
+        void WorkItem(String moduleName, String workItemId, String type, String title, String outlineNumber, String description, int index) {
             this.moduleName = moduleName;
             this.workItemId = workItemId;
             this.type = type;
             this.title = title;
             this.outlineNumber = outlineNumber;
             this.description = description;
-            this.workItemX = workItemX;
+            this.index = index;
         }
 
         public String toString() {
@@ -200,6 +216,33 @@ public class PolarionXmlConvert {
                 case "--replaceDots":
                     replaceDots = "1".equals(after);
                     break;
+                case "--state":
+                    stateFile = after;
+                    break;
+                case "--journal":
+                    journalFile = after;
+                    break;
+                case "--uploads":
+                    uploadsFile = after;
+                    break;
+                case "--resume":
+                    resume = true;
+                    break;
+                case "--parallel":
+                    parseThreads = StringUtils.isEmpty(after) ? 0 : Integer.parseInt(after);
+                    break;
+                case "--threads":
+                    restThreads = Integer.parseInt(after);
+                    break;
+                case "--http2":
+                    http2 = "1".equals(after);
+                    break;
+                case "--metadataCache":
+                    metadataCacheFile = after;
+                    break;
+                case "--refreshMetadata":
+                    refreshMetadata = "1".equals(after);
+                    break;
                 default:
                     break;
             }
@@ -236,6 +279,13 @@ public class PolarionXmlConvert {
         private Integer stepsFieldId = null;
         private Integer upId = null;
         private Integer referenceId = null;
+
+        /**
+         * @return true if all the fields the conversion writes are known
+         */
+        boolean isComplete() {
+            return descriptionFieldId != null && legacyIdFieldId != null;
+        }
     }
     Map<String, FieldIDSet> mapCat2FieldIDs = new HashMap<>();
 
@@ -247,39 +297,20 @@ public class PolarionXmlConvert {
 //    private Integer referenceId = null;
     ////////////////////////////////////////////////////////////////////////
 
-    private Map<String,XElement> outlineNumbers = new HashMap<>();
+    // outline numbers are parsed once
+    private Map<String, OutlineKey> outlineKeys = new HashMap<>();
 
-    Map<String, String> mapID2ID = new HashMap<>();
-    Map<String, WorkItem> mapWorkItems = new HashMap<>();
+    // filled by the conversion threads
+    Map<String, String> mapID2ID = new ConcurrentHashMap<>();
     Map<String, String> mapTypeToCat = new HashMap<>();
+    private WorkItemStore store;
 
     int compareOutlineNumbers(String a, String b) {
-        List<Integer> al = outlineToInts(a);
-        List<Integer> bl = outlineToInts(b);
-        int len = al.size() < bl.size() ? al.size() : bl.size();
-        for(int i = 0; i < len; i++) {
-            int ret = al.get(i) - bl.get(i);
-            if(ret != 0) return ret;
-        }
-        return al.size() - bl.size();
+        return outlineKey(a).compareTo(outlineKey(b));
     }
 
-    List<LinkedWorkItem> getLinkedWorkItems(Map<String, WorkItem> mapWorkItems, XElement fieldsX) {
-        List<LinkedWorkItem> ret = new ArrayList<>();
-        if (fieldsX != null) {
-            ArrayList<XElement> linkedItemsX = fieldsX.getAllChildrenElementLocal("linkedWorkItem");
-            if (linkedItemsX != null) {
-                for (XElement linkedItemX: linkedItemsX) {
-                    String workItemId = linkedItemX.getFirstChildElementLocal("workItem").getAttribute("workItemId");
-                    String role = linkedItemX.getFirstChildElementLocal("role").getAttribute("id");
-                    WorkItem workItem = mapWorkItems.get(workItemId);
-                    if(workItem != null) {
-                        ret.add(new LinkedWorkItem(role, workItem));
-                    }
-                }
-            }
-        }
-        return ret;
+    private OutlineKey outlineKey(String outline) {
+        return outlineKeys.computeIfAbsent(outline, OutlineKey::parse);
     }
 
     Map<String, String> mapID2Title = new HashMap<String, String>();
@@ -296,6 +327,39 @@ public class PolarionXmlConvert {
             e.printStackTrace();
         }
     }
+    private FieldIDSet readFieldIds(ProjectMetadataCache metadata, String cat) throws MatrixLibException {
+        FieldIDSet fields = new FieldIDSet();
+        List<Field> fieldList = metadata.getCategoryFields(project, cat);
+        if (fieldList == null)
+            return fields;
+        for (Field field : fieldList) {
+            //matrixFields.put(field.label, field.id);
+            switch (field.label) {
+                case "Description":
+                    fields.descriptionFieldId = field.id;
+                    break;
+                case "LegacyID":
+                    fields.legacyIdFieldId = field.id;
+                    break;
+                case "Uplinks":
+                    fields.uplinksFieldId = field.id;
+                    break;
+                case "Up":
+                    fields.upId = field.id;
+                    break;
+                case "References":
+                    fields.referenceId = field.id;
+                    break;
+                default:
+                    // TODO no need
+                    if (stepsField != null && field.label.equals(stepsField))
+                        fields.stepsFieldId = field.id;
+                    break;
+            }
+        }
+        return fields;
+    }
+
     private void convert() throws Exception {
 //        type id="architectureElement"    -> ARCH
 //        type id="designElement"      -> SDD
@@ -315,74 +379,131 @@ public class PolarionXmlConvert {
 
         images.reloadAllImages();
         images.reloadAllWorkItems();
-        docX = XDocument.loadXmlFile(xmlInput);
         cli = new MatrixRestClient(MatrixRestClient.fixInstance(instance) + "/rest/1");
+        if (http2)
+            cli.setTransport(new JavaHttpTransport(10));
         cli.setTokenAuthorization(token);
 
+        ProjectMetadataCache metadata = new ProjectMetadataCache(cli,
+            metadataCacheFile != null ? new File(metadataCacheFile) : null, ProjectMetadataCache.DEFAULT_TTL_MILLIS);
+        if (refreshMetadata)
+            metadata.invalidate(project);
+        metadata.prefetch(project, mapTypeToCat.values());
+        boolean refreshed = refreshMetadata;
         for(String cat : mapTypeToCat.values()) {
-            CategoryAndItems category = cli.getCategory(project, cat);
-            FieldIDSet fields = new FieldIDSet();
-            for (Field field : category.fieldList) {
-                //matrixFields.put(field.label, field.id);
-                switch (field.label) {
-                    case "Description":
-                        fields.descriptionFieldId = field.id;
-                        break;
-                    case "LegacyID":
-                        fields.legacyIdFieldId = field.id;
-                        break;
-                    case "Uplinks":
-                        fields.uplinksFieldId = field.id;
-                        break;
-                    case "Up":
-                        fields.upId = field.id;
-                        break;
-                    case "References":
-                        fields.referenceId = field.id;
-                        break;
-                    default:
-                        // TODO no need
-                        if (stepsField != null && field.label.equals(stepsField))
-                            fields.stepsFieldId = field.id;
-                        break;
-                }
+            FieldIDSet fields = readFieldIds(metadata, cat);
+            if (! fields.isComplete() && ! refreshed) {
+                // the cache may be older than a change of the project, the server is asked before giving up
+                System.out.println("Fields missing in " + cat + ", reading the project metadata again");
+                metadata.invalidate(project);
+                refreshed = true;
+                fields = readFieldIds(metadata, cat);
             }
+            if (fields.descriptionFieldId == null)
+                throw new Exception("No Description field in category " + cat);
+            if (fields.legacyIdFieldId == null)
+                System.out.println("No LegacyID field in category " + cat + ", the Polarion ids won't be kept");
+            if (stepsField != null && fields.stepsFieldId == null)
+                System.out.println("No " + stepsField + " field in category " + cat + ", the test steps won't be kept");
             mapCat2FieldIDs.put(cat, fields);
         }
 
-        List<WorkItem> workItems = new ArrayList<>();
-
-        List<String> allOutline = new ArrayList<>();
-        ArrayList<XElement> workItemListX = docX.getDocumentElement().getAllChildrenElementLocal("workItem");
-        System.out.println("Found " + workItemListX.size() + " workItems");
-        for (XElement workItemX: workItemListX) {
-            // <outlineNumber>3.2-1</outlineNumber>
-            XElement fieldsX = workItemX.getFirstChildElementLocal("fields");
-            String outLineNumber = null;
+        if (stateFile != null) {
+            state = new ConversionState(stateFile);
+            System.out.println("Conversion state: " + state.size() + " items converted before");
+        }
+        if (journalFile == null && resume)
+            journalFile = xmlInput + ".journal";
+        journal = new ResumeJournal(journalFile, resume);
+        uploads = new UploadRegistry(uploadsFile);
+        images.setUploadRegistry(uploads);
+        // a stopped run (Ctrl-C) keeps what it created too, the next run doesn't add it again
+        Thread saveOnExit = new Thread(() -> {
             try {
-                outLineNumber = fieldsX.getFirstChildElementLocal("outlineNumber").getText();
+                state.save();
+            } catch (IOException ex) {
+                System.out.println("Failed to save the conversion state: " + ex.getMessage());
             }
-            catch (Exception ex) {
-                outLineNumber = null;
+        });
+        if (state != null)
+            Runtime.getRuntime().addShutdownHook(saveOnExit);
+        try {
+            convertItems();
+        } finally {
+            // what was done so far is kept even when the run fails
+            if (store != null)
+                store.close();
+            journal.close();
+            uploads.close();
+            if (state != null) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(saveOnExit);
+                } catch (IllegalStateException stopping) {
+                    // the hook saves it
+                }
+                state.save();
+                System.out.println("Conversion state saved to " + state.getFile().getAbsolutePath());
             }
-            if (outLineNumber != null) {
-                String moduleName = fieldsX.getFirstChildElementLocal("module").getText();
-                String type = fieldsX.getFirstChildElementLocal("type").getAttribute("id");
-                String title = fieldsX.getFirstChildElementLocal("title").getText();
-                String workItemId = fieldsX.getFirstChildElementLocal("id").getText();
-                workItems.add(new WorkItem(moduleName, workItemId, type, outLineNumber, title.replaceAll("^[0-9.-]*",""), workItemX));
-
-                if (itemTypeFilter == null || itemTypeFilter.equals(type)) {
-                    outlineNumbers.put(outLineNumber, workItemX);
-                    allOutline.add(outLineNumber);
+        }
+        System.out.println(uploads.size() + " pictures in Matrix, " + uploads.getReused() + " uploads avoided");
+    }
+
+    private void convertItems() throws Exception {
+        // what the interrupted run did is not done again
+        for (Map.Entry<String, ConversionState.Entry> done : journal.getEntries().entrySet()) {
+            mapID2ID.put(done.getKey(), done.getValue().matrixId);
+            if (state != null)
+                state.put(done.getKey(), done.getValue().matrixId, done.getValue().hash);
+        }
+        if (resume)
+            System.out.println("Resuming from " + journal.getFile().getAbsolutePath() + ": "
+                + journal.getEntries().size() + " folders and items already done");
+
+        List<WorkItem> workItems = new ArrayList<>();
+
+        // The export is streamed one workItem at a time: only the items we keep stay in memory, never the whole DOM
+        // and what we keep goes to the compact store, the records themselves are dropped right away
+        // Links are resolved by LinkResolver: it sorts the edges on disk and joins them with the ids of the kept items,
+        // so we don't need a map of all the work items to find the targets
+        int nbWorkItems = 0;
+        store = new WorkItemStore();
+        LinkResolver links = new LinkResolver();
+        // the file the serial reader would open, .xmlz fallback included
+        File input = XDocument.findXmlFileOrZip(xmlInput);
+        boolean parallel = parseThreads != null;
+        if (parallel && ZipUtil.isCompressed(input)) {
+            // chunks are found in the mapped file: archives are streamed by a single reader
+            System.out.println("Compressed export, parsing on one thread");
+            parallel = false;
+        }
+        try (WorkItemSource reader = parallel ? new ParallelWorkItemReader(input, parseThreads) : WorkItemReader.open(input)) {
+            WorkItemRecord record;
+            while ((record = reader.next()) != null) {
+                nbWorkItems++;
+                // <outlineNumber>3.2-1</outlineNumber>
+                String outLineNumber = record.outlineNumber;
+                if (outLineNumber != null) {
+                    int index = store.add(record);
+                    WorkItem workItem = new WorkItem(store.getModule(index), store.getId(index), store.getType(index),
+                        store.getOutlineNumber(index), record.title.replaceAll("^[0-9.-]*",""), index);
+                    workItem.outlineKey = outlineKey(outLineNumber);
+                    workItems.add(workItem);
+                    links.addItem(record.id, index);
+                    for (WorkItemRecord.Link link: record.linkedWorkItems)
+                        links.addLink(index, false, link.role, link.workItemId);
+                    for (WorkItemRecord.Link link: record.linkedWorkItemsDerived)
+                        links.addLink(index, true, link.role, link.workItemId);
+                } else {
+                    System.out.println(">>>>" + record.id + " has no outlineNumber, skipped");
                 }
             }
         }
+        System.out.println("Found " + nbWorkItems + " workItems");
 
         Collections.sort(workItems, (a, b) -> {
             int ret1 = a.moduleName.compareTo(b.moduleName);
             if(ret1 == 0) {
-                return compareOutlineNumbers(a.outlineNumber, b.outlineNumber);
+                return a.outlineKey.compareTo(b.outlineKey);
 //                int ret2 =  a.type.compareTo(b.type);
 //                if(ret2 == 0) {
 //                    return compareOutlineNumbers(a.outlineNumber, b.outlineNumber);
@@ -392,27 +513,22 @@ public class PolarionXmlConvert {
             return ret1;
         });
 
+        WorkItem[] itemsByIndex = new WorkItem[store.size()];
         for(WorkItem workItem : workItems) {
-            mapWorkItems.put(workItem.workItemId, workItem);
+            itemsByIndex[workItem.index] = workItem;
         }
 
-        for (XElement workItemX: workItemListX) {
-            XElement fieldsX = workItemX.getFirstChildElementLocal("fields");
-            String workItemId = fieldsX.getFirstChildElementLocal("id").getText();
-
-            XElement linkedWorkItemsX = fieldsX.getFirstChildElementLocal("linkedWorkItems");
-            List<LinkedWorkItem> parent = getLinkedWorkItems(mapWorkItems, linkedWorkItemsX);
-
-            XElement linkedWorkItemsDerivedX = fieldsX.getFirstChildElementLocal("linkedWorkItemsDerived");
-            List<LinkedWorkItem> children = getLinkedWorkItems(mapWorkItems, linkedWorkItemsDerivedX);
-
-            WorkItem workItem = mapWorkItems.get(workItemId);
-            if(workItem != null) {
-                workItem.linkedItems.addAll(parent);
-                workItem.linkedItemsDerived.addAll(children);
-            } else {
-                System.out.println(">>>>" + workItemId + " not in mapWorkItems");
-            }
+        // edges come back in the order of the export, so linkedItems keep the order of the linkedWorkItems
+        try {
+            links.resolve((source, derived, role, target) -> {
+                LinkedWorkItem linked = new LinkedWorkItem(store.getPool().intern(role), itemsByIndex[target]);
+                if (derived)
+                    itemsByIndex[source].linkedItemsDerived.add(linked);
+                else
+                    itemsByIndex[source].linkedItems.add(linked);
+            });
+        } finally {
+            links.close();
         }
 
         //for(WorkItem workItem : workItems) {
@@ -472,79 +588,60 @@ public class PolarionXmlConvert {
 //        for(WorkItem workItem : workItems) {
 //            if (workItem.type.equals("heading") || workItem.type.equals("info"))
 //                continue;
-//            printDesc(workItem.workItemX);
+//            printDesc(store.getRecord(workItem.index));
 //        }
 
+        // Where each item goes and which folders are needed is decided before any folder is created:
+        // each heading is resolved once in the tree, items are then placed with a lookup of their heading
+        HeadingTree headings = new HeadingTree();
+        List<HeadingTree.Placement> placements = new ArrayList<>();
         for(WorkItem workItem : workItems) {
-            try {
-                if (workItem.type.equals("heading") || workItem.type.equals("info"))
-                    continue;
-                if (workItem.linkedItems.size() > 0) {
-                    Stack<WorkItem> parentStack = new Stack<>();
-                    WorkItem currentWorkItem = workItem;
-                    while (true) {
-                        boolean isRoot = true;
-                        for (LinkedWorkItem parent : currentWorkItem.linkedItems) {
-                            if (parent.role.equals("parent") &&
-                                parent.workItem.type.equals("heading")) {
-                                parentStack.push(parent.workItem);
-                                currentWorkItem = parent.workItem;
-                                isRoot = false;
-                                break;
-                            }
-                        }
-                        if (isRoot) break;
-                    }
+            if (workItem.type.equals("heading") || workItem.type.equals("info"))
+                continue;
+            if (workItem.linkedItems.isEmpty()) {
+                System.out.println("(Create) NO linkedItems: " + workItem);
+                continue;
+            }
+            String currentCategory = mapTypeToCat.get(workItem.type);
+            if (currentCategory == null) {
+                System.out.println("No category found: " + workItem);
+                continue;
+            }
+            HeadingTree.Placement placement = headings.place(workItem, currentCategory);
+            if (placement.heading == null) {
+                System.out.println("immediateParent is null: " + workItem);
+                continue;
+            }
+            placements.add(placement);
+        }
 
-                    // Create folder from root to the immediate parent if needed
-                    String currentCategory = mapTypeToCat.get(workItem.type);
-                    String rootMatrixFolder = "F-" + currentCategory + "-1";
-                    if (currentCategory != null) {
-                        WorkItem immediateParent = null;
-                        while (!parentStack.isEmpty()) {
-                            WorkItem parent = parentStack.pop();
-                            if (parentStack.isEmpty()) {
-                                immediateParent = parent;
-                            }
-                            // Check if already created
-                            String parentMatrixFolder = mapID2ID.get(parent.workItemId);
-                            if (parentMatrixFolder == null) {
-                                // hike
-                                if(currentCategory.equals("SYREQ") && parent.outlineNumber.equals("2")) {
-                                    currentCategory = "PREQ";
-                                    rootMatrixFolder = "F-PREQ-1";
-                                }
-                                ItemAndSerial addFolder = cli.addFolder(project, rootMatrixFolder,
-                                    //parent.outlineNumber + " " +
-                                        parent.title, REASON, null);
-                                String newMatrixFolder =
-                                    "F-" + currentCategory + "-" + addFolder.serial;
-                                System.out.println("Folder created: " + newMatrixFolder);
-                                mapID2ID.put(parent.workItemId, newMatrixFolder);
-                                rootMatrixFolder = newMatrixFolder;
-                            } else {
-                                rootMatrixFolder = parentMatrixFolder;
-                            }
-                        }
-                        if (immediateParent != null) {
-                            if(currentCategory.equals("SYREQ") && mapWorkItems.get(immediateParent.workItemId).outlineNumber.equals("2")) {
-                                currentCategory = "PREQ";
-                            }
-                            String parentMatrixFolder = mapID2ID.get(immediateParent.workItemId);
-                            convertOne(workItem.workItemX, currentCategory, parentMatrixFolder, false);
-                        } else {
-                            System.out.println("immediateParent is null: " + workItem);
-                        }
-                    } else {
-                        System.out.println("No category found: " + workItem);
+        List<HeadingTree.FolderToCreate> folderPlan = headings.getFolderPlan();
+        System.out.println("Folders to create: " + folderPlan.size() + ", items to create: " + placements.size());
+
+        // The only order that matters is that a folder exists before its content is added: the children of a folder
+        // are created one after the other (sub folders first, then items, in outline order) and folders are filled
+        // in parallel
+        ConversionScheduler scheduler = new ConversionScheduler();
+        Map<HeadingTree.FolderToCreate, ConversionScheduler.Node> folderNodes = new HashMap<>();
+        for (HeadingTree.FolderToCreate folder : folderPlan) {
+            Object parentKey = folder.parent == null ? folder.getRootFolder() : folder.parent.heading;
+            folderNodes.put(folder, scheduler.addChild(parentKey, folderNodes.get(folder.parent),
+                "folder " + folder.heading.workItemId, () -> createFolder(folder)));
+        }
+        for (HeadingTree.Placement placement : placements) {
+            scheduler.addChild(placement.heading, folderNodes.get(headings.getFolder(placement.heading)),
+                "item " + placement.workItem.workItemId, () -> {
+                    String parentMatrixFolder = mapID2ID.get(placement.heading.workItemId);
+                    if (parentMatrixFolder == null) {
+                        System.out.println("(Create) NO MATRIX PARENT FOLDER: " + placement.workItem);
+                        return;
                     }
-                } else {
-                    System.out.println("(Create) NO linkedItems: " + workItem);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+                    convertOne(store.getRecord(placement.workItem.index), placement.category, parentMatrixFolder, false);
+                });
         }
+        int failed = scheduler.run(restThreads);
+        if (failed > 0)
+            System.out.println(failed + " folders or items failed");
 
 /**
         for(WorkItem workItem : workItems) {
@@ -578,7 +675,7 @@ public class PolarionXmlConvert {
             String matrixFolder = folderToMatrix.get(header);
             if (matrixFolder == null) {
                 // We'll have to create a new one
-                int level = outlineToInts(workItem).size();
+                int level = outlineKey(workItem).depth();
                 String prevLevel = main;
                 for (int check = 1; check <= level - 2; check++) {
                     String upperHeader = getHeaderFromOutline(workItem, level - check);
@@ -601,41 +698,44 @@ public class PolarionXmlConvert {
 */
     }
 
+    private void createFolder(HeadingTree.FolderToCreate folder) throws Exception {
+        if (journal.get(folder.heading.workItemId) != null)
+            return;
+        ConversionState.Entry previous = state != null ? state.get(folder.heading.workItemId) : null;
+        if (previous != null) {
+            mapID2ID.put(folder.heading.workItemId, previous.matrixId);
+            return;
+        }
+        String rootMatrixFolder = folder.parent == null ? folder.getRootFolder() : mapID2ID.get(folder.parent.heading.workItemId);
+        if (rootMatrixFolder == null) {
+            System.out.println("NO MATRIX PARENT FOLDER for heading: " + folder.heading);
+            return;
+        }
+        ItemAndSerial addFolder = cli.addFolder(project, rootMatrixFolder,
+            //folder.heading.outlineNumber + " " +
+                folder.heading.title, REASON, null);
+        String newMatrixFolder = "F-" + folder.category + "-" + addFolder.serial;
+        System.out.println("Folder created: " + newMatrixFolder);
+        mapID2ID.put(folder.heading.workItemId, newMatrixFolder);
+        journal.record(folder.heading.workItemId, newMatrixFolder, null);
+        if (state != null)
+            state.put(folder.heading.workItemId, newMatrixFolder, null);
+    }
+
     private Map<String,String> folderToMatrix = new HashMap<>();
 
     private String getHeaderFromOutline(String workItem, int minus) {
-        List<Integer> outlineToInts = outlineToInts(workItem);
-        String ret = "";
-        for (int i = 0; i < outlineToInts.size() - minus; i++)
-            ret += "." + outlineToInts.get(i);
-        if (StringUtils.isEmpty(ret))
-            return "";
-        return ret.substring(1);
+        OutlineKey key = outlineKey(workItem);
+        return key.header(key.depth() - minus);
     }
 
     public class CustomComparator implements Comparator<String> {
         @Override
         public int compare(String o1, String o2) {
-            List<Integer> l1 = outlineToInts(o1);
-            List<Integer> l2 = outlineToInts(o2);
-            int size = Integer.min(l1.size(), l2.size());
-            for (int part = 0; part < size; part++)
-                if (l1.get(part)!=l2.get(part))
-                    return l1.get(part) - l2.get(part);
-            return l2.size() - l1.size();
+            return outlineKey(o1).compareDeepestFirst(outlineKey(o2));
         }
     }    
 
-    // converts 3.2-1 to [3,2,1]
-    private List<Integer> outlineToInts(String input) {
-        input = input.replace(".","-");
-        String[] split = StringUtil.splitOnString(input, "-");
-        List<Integer> ret = new ArrayList<>();
-        for (String s: split)
-            ret.add(StringUtil.stringToIntZero(s));
-        return ret;
-    }
-
     List<String> workItemId2MatrixId(List<String> workItemIds) {
         ArrayList<String> ret = new ArrayList<>();
         for(String workItemId : workItemIds) {
@@ -648,25 +748,16 @@ public class PolarionXmlConvert {
     }
 
 
-    private void printDesc(XElement workItemX) throws Exception {
-        XElement fieldsX = workItemX.getFirstChildElementLocal("fields");
-        XElement idX = fieldsX.getFirstChildElementLocal("id");
-        String legacyId = idX.getText();
-        String type = fieldsX.getFirstChildElementLocal("type").getAttribute("id");
+    private void printDesc(WorkItemRecord record) throws Exception {
+        String legacyId = record.id;
+        String type = record.type;
         String cat = mapTypeToCat.get(type);
 
-        XElement titleX = fieldsX.getFirstChildElementLocal("title");
-        String title = titleX.getText();
+        String title = record.title;
 
-        XElement descriptionX = fieldsX.getFirstChildElementLocal("description");
         String htmlDescription = "";
-        if(descriptionX != null) {
-            htmlDescription = nodeToString(descriptionX.getUnderlyingElement());
-            htmlDescription = htmlDescription.replace("<description xmlns=\"http://polarion.com/xml-export\">", "")
-                .replace("</description>", "")
-                .replace("xmlns=\"http://www.w3.org/1999/xhtml\"", "")
-                .replace("<html>", "")
-                .replace("</html>", "")
+        if(record.description != null) {
+            htmlDescription = record.description
                 .replace("\"", "")
                 .replace("\r", "")
                 .replace("\n", "")
@@ -683,13 +774,15 @@ public class PolarionXmlConvert {
         System.out.println();
     }
 
-    private void convertOne(XElement workItemX, String category, String matrixFolder, boolean update) throws Exception {
-        XElement fieldsX = workItemX.getFirstChildElementLocal("fields");
+    private void convertOne(WorkItemRecord record, String category, String matrixFolder, boolean update) throws Exception {
         /*
           <id>ZBS01-23884</id>
          */
-        XElement idX = fieldsX.getFirstChildElementLocal("id");
-        String legacyId = idX.getText();
+        String legacyId = record.id;
+        if (journal.get(legacyId) != null) {
+            System.out.println("Already done: " + legacyId + " -> " + journal.get(legacyId).matrixId);
+            return;
+        }
 
         boolean rejected = false;
         rejected = ! images.getWorkItems().contains(legacyId);
@@ -697,8 +790,7 @@ public class PolarionXmlConvert {
         /*
          <title>4.1.1-1 Logging with SLF4J Logger: The Simple Logging Facade for Java (SLF4J) is used as...</title>
          */
-        XElement titleX = fieldsX.getFirstChildElementLocal("title");
-        String title = titleX.getText();
+        String title = record.title;
         if (removeNumbers)
             title = removeNumbers(title);
         /*
@@ -706,7 +798,7 @@ public class PolarionXmlConvert {
                 <property id="iconURL">/polarion/icons/default/enums/type_requirement.gif</property>
             </type>             
          */
-        String type = fieldsX.getFirstChildElementLocal("type").getAttribute("id");
+        String type = record.type;
 
         /*
          <description>
@@ -717,16 +809,10 @@ public class PolarionXmlConvert {
             </html>
          </description>
          */
-        XElement descriptionX = fieldsX.getFirstChildElementLocal("description");
         String htmlDescription = "";
-        if(descriptionX != null) {
-            htmlDescription = nodeToString(descriptionX.getUnderlyingElement());
-            htmlDescription = htmlDescription.replace("<description xmlns=\"http://polarion.com/xml-export\">", "")
-                .replace("</description>", "")
-                .replace("xmlns=\"http://www.w3.org/1999/xhtml\"", "")
-                .replace("<html>", "")
-                .replace("</html>", "")
-                .trim();
+        if(record.description != null) {
+            // the reader already dropped the description/html wrappers and the xhtml namespace
+            htmlDescription = record.description;
             if (title.contains("...") && replaceDots)
                 title = replaceDots(title, htmlDescription);
         }
@@ -735,7 +821,6 @@ public class PolarionXmlConvert {
         //System.out.println();
         //System.out.println(htmlDescription);
         //System.out.println();
-        XElement linkedX = fieldsX.getFirstChildElementLocal("linkedWorkItems");
 
         /*
             <linkedWorkItems>
@@ -753,35 +838,54 @@ public class PolarionXmlConvert {
         List<String> upLinks = new ArrayList<>();
         List<String> upIds = new ArrayList<>();
         List<String> referenceIds = new ArrayList<>();
-        if (linkedX != null) {
-            ArrayList<XElement> linkedItemsX = linkedX.getAllChildrenElementLocal("linkedWorkItem");
-            if (linkedItemsX != null) {
-                for (XElement linkedItemX: linkedItemsX) {
-                    String workItemId = linkedItemX.getFirstChildElementLocal("workItem").getAttribute("workItemId");
-                    String role = linkedItemX.getFirstChildElementLocal("role").getAttribute("id");
-                    //System.out.println("\t" + role + " " + workItemId);
-                    //if ("parent".equals(role) && "ZBS01-24510".equals(workItem)) {
-                    //    System.out.println("Gotcha");
-                    //}
-                    if(role.equals("parent")) {
-                        upIds.add(workItemId);
-                    } else {
-                        referenceIds.add(workItemId);
-                    }
-                    switch (role) {
-                        case "implements":
-                        case "refines":
-                        case "verifies":
-                        case "depends_on":
-                            upLinks.add(workItemId);
-                            break;
-                        default:
-                            if (otherRelations != null && otherRelations.contains(role)) {
-                                upLinks.add(workItemId);
-                            }
-                            break;
+        for (WorkItemRecord.Link link: record.linkedWorkItems) {
+            String workItemId = link.workItemId;
+            String role = link.role;
+            //System.out.println("\t" + role + " " + workItemId);
+            //if ("parent".equals(role) && "ZBS01-24510".equals(workItem)) {
+            //    System.out.println("Gotcha");
+            //}
+            if(role.equals("parent")) {
+                upIds.add(workItemId);
+            } else {
+                referenceIds.add(workItemId);
+            }
+            switch (role) {
+                case "implements":
+                case "refines":
+                case "verifies":
+                case "depends_on":
+                    upLinks.add(workItemId);
+                    break;
+                default:
+                    if (otherRelations != null && otherRelations.contains(role)) {
+                        upLinks.add(workItemId);
                     }
+                    break;
+            }
+        }
+
+        String titleFromCSV = mapID2Title.get(legacyId);
+        if(titleFromCSV != null) {
+            title = titleFromCSV;
+        }
+        ArrayList<String> labels = new ArrayList<>();
+        if (rejected)
+            labels.add("rejected");
+
+        // Hash of what the item is made of, taken before pictures get new upload urls:
+        // an item converted before from the same content is skipped, a changed one is updated
+        String hash = null;
+        if (state != null) {
+            hash = contentHash(category, title, htmlDescription, record.linkedWorkItems, labels);
+            ConversionState.Entry previous = state.get(legacyId);
+            if (previous != null) {
+                mapID2ID.put(legacyId, previous.matrixId);
+                if (state.isUnchanged(legacyId, hash)) {
+                    System.out.println("Item unchanged: " + previous.matrixId);
+                    return;
                 }
+                update = true;
             }
         }
 
@@ -807,18 +911,14 @@ public class PolarionXmlConvert {
 //        if (referenceId != null)
 //            fvl.fieldVal.add(new FieldAndValue(referenceId, StringUtil.joinArrayWith(workItemId2MatrixId(referenceIds), ",")));
 
-        String titleFromCSV = mapID2Title.get(legacyId);
-        if(titleFromCSV != null) {
-            title = titleFromCSV;
-        }
-        ArrayList<String> labels = new ArrayList<>();
-        if (rejected)
-            labels.add("rejected");
         if(update) {
             String itemId = mapID2ID.get(legacyId);
             if(itemId != null) {
                 String updateItem = cli.updateItem(project, itemId, title, REASON, fvl, labels);
                 System.out.println("Item updated: " + itemId);
+                journal.record(legacyId, itemId, hash);
+                if (state != null)
+                    state.put(legacyId, itemId, hash);
             } else {
                 System.out.println("Cannot find matrix id for " + legacyId + " when updating");
             }
@@ -829,9 +929,25 @@ public class PolarionXmlConvert {
             String addItemId = category + "-" + addItem.serial;
             mapID2ID.put(legacyId, addItemId);
             System.out.println("Item created: " + addItemId);
+            journal.record(legacyId, addItemId, hash);
+            if (state != null)
+                state.put(legacyId, addItemId, hash);
         }
     }
 
+    private String contentHash(String category, String title, String htmlDescription, List<WorkItemRecord.Link> links,
+            List<String> labels) throws IOException {
+        ConversionState.ContentHash hash = new ConversionState.ContentHash();
+        hash.add(category).add(title).add(htmlDescription);
+        for (WorkItemRecord.Link link: links)
+            hash.add(link.role).add(link.workItemId);
+        for (String label: labels)
+            hash.add(label);
+        for (File picture: images.getPictureFiles(htmlDescription))
+            hash.addFile(picture);
+        return hash.getHash();
+    }
+
     private String replaceDotsFromString(String text, String defaultTitle) {
         if (StringUtils.isEmpty(text))
             return defaultTitle;
@@ -978,15 +1094,4 @@ public class PolarionXmlConvert {
         
     }
 
-    // https://stackoverflow.com/questions/8979851/java-how-to-extract-a-complete-xml-block
-    private static String nodeToString(Node node)    throws TransformerException
-    {
-        StringWriter buf = new StringWriter();
-        Transformer xform = TransformerFactory.newInstance().newTransformer();
-        xform.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        xform.setOutputProperty(OutputKeys.METHOD, "html");
-        xform.transform(new DOMSource(node), new StreamResult(buf));
-        return(buf.toString());
-    }    
-
 }
@@ -0,0 +1,181 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import com.matrixreq.lib.ThreadUtil;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of the folders and items created (or updated) during a run: one line
+ * polarionId|matrixId|hash per item. Lines are flushed and synced to disk every FLUSH_EVERY lines and at least
+ * every FLUSH_MILLIS, so after a crash at most the last batch is lost, and a line cut by the crash is ignored when
+ * the journal is read back. Without a file the journal only lives in memory, for the run.
+ *
+ * With resume, the journal of the interrupted run is loaded and new lines are appended to it; otherwise a previous
+ * journal is kept as .bak and a new one is started.
+ */
+public class ResumeJournal implements Closeable {
+
+    public static final int FLUSH_EVERY = 50;
+    public static final long FLUSH_MILLIS = 2000;
+
+    private final File file;
+    private final Map<String, ConversionState.Entry> entries = new LinkedHashMap<>();
+    private final FileOutputStream out;
+    private final Writer writer;
+    private final ScheduledExecutorService timer;
+    private int pending = 0;
+    private boolean closed = false;
+
+    /**
+     * @param fileName null for a journal in memory only
+     * @param resume true to load the journal and continue it
+     * @throws IOException
+     */
+    public ResumeJournal(String fileName, boolean resume) throws IOException {
+        if (fileName == null) {
+            file = null;
+            out = null;
+            writer = null;
+            timer = null;
+            return;
+        }
+        file = new File(fileName);
+        if (file.exists()) {
+            if (resume)
+                load();
+            else
+                Files.move(file.toPath(), new File(fileName + ".bak").toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        out = new FileOutputStream(file, true);
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        // the lines of a slow run don't wait for the next record to be written
+        timer = Executors.newSingleThreadScheduledExecutor(ThreadUtil.daemonThreads("resume-journal"));
+        timer.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (IOException ex) {
+                System.out.println("Failed to write the journal " + file + ": " + ex.getMessage());
+            }
+        }, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        // what is still buffered when the JVM is stopped (Ctrl-C) gets written
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                close();
+            } catch (IOException ignore) {
+            }
+        }));
+    }
+
+    private void load() throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        int end = content.length;
+        // whatever follows the last new line was cut by the crash
+        while (end > 0 && content[end - 1] != '\n')
+            end--;
+        for (String line: new String(content, 0, end, StandardCharsets.UTF_8).split("\n")) {
+            String[] parts = line.split("\\|", -1);
+            if (parts.length == 3 && ! parts[0].isEmpty() && ! parts[1].isEmpty())
+                entries.put(parts[0], new ConversionState.Entry(parts[1], parts[2]));
+        }
+        if (end < content.length) {
+            // drop the partial line so the next lines start clean
+            try (FileOutputStream truncate = new FileOutputStream(file, true)) {
+                truncate.getChannel().truncate(end);
+            }
+        }
+    }
+
+    /**
+     * @return the journal file, null if the journal is in memory only
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return what the journal contained when it was opened for resume, plus what was recorded since, in order
+     */
+    public synchronized Map<String, ConversionState.Entry> getEntries() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(entries));
+    }
+
+    /**
+     * @param polarionId
+     * @return the journal entry of polarionId, null if it wasn't done yet
+     */
+    public synchronized ConversionState.Entry get(String polarionId) {
+        return entries.get(polarionId);
+    }
+
+    /**
+     * Records a created or updated folder or item
+     * @param polarionId
+     * @param matrixId
+     * @param hash may be null
+     * @throws IOException
+     */
+    public synchronized void record(String polarionId, String matrixId, String hash) throws IOException {
+        ConversionState.Entry entry = new ConversionState.Entry(matrixId, hash == null ? "" : hash);
+        entries.put(polarionId, entry);
+        if (writer == null)
+            return;
+        writer.write(polarionId + "|" + entry.matrixId + "|" + entry.hash + "\n");
+        pending++;
+        if (pending >= FLUSH_EVERY)
+            flush();
+    }
+
+    /**
+     * Writes and syncs the recorded lines, if any
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (closed || writer == null || pending == 0)
+            return;
+        writer.flush();
+        out.getFD().sync();
+        pending = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        if (timer != null)
+            timer.shutdownNow();
+        flush();
+        closed = true;
+        if (writer != null)
+            writer.close();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import com.matrixreq.client.matrixrestclient.MatrixRestClient;
+import com.matrixreq.client.matrixrestclient.struct.FileAndKey;
+import com.matrixreq.lib.MatrixLibException;
+import com.matrixreq.lib.ThreadUtil;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The files uploaded to Matrix, by content: a file whose content was already uploaded to a project isn't uploaded
+ * again, the file id and key of the first upload are reused. The content is identified by its SHA-256, so the same
+ * picture under two names or in two runs is uploaded once.
+ *
+ * Stored as lines server|project|hash|fileId|key appended after each upload, a line cut by a crash is ignored. Two
+ * threads uploading the same content at the same time do a single upload.
+ */
+public class UploadRegistry implements Closeable {
+
+    private final File file;
+    private final Writer writer;
+    private final Map<String, FileAndKey> uploads = new HashMap<>();
+    private final Map<String, CompletableFuture<FileAndKey>> uploading = new HashMap<>();
+    // hash of the files already read, by path, size and date
+    private final Map<String, String> hashes = new HashMap<>();
+    private int reused = 0;
+
+    /**
+     * @param fileName the registry file, loaded if it exists. null to only avoid duplicates during this run
+     * @throws IOException
+     */
+    public UploadRegistry(String fileName) throws IOException {
+        if (fileName == null) {
+            file = null;
+            writer = null;
+            return;
+        }
+        file = new File(fileName);
+        if (file.exists())
+            load();
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    private void load() throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        int end = content.length;
+        // whatever follows the last new line was cut by a crash
+        while (end > 0 && content[end - 1] != '\n')
+            end--;
+        for (String line: new String(content, 0, end, StandardCharsets.UTF_8).split("\n")) {
+            String[] parts = line.split("\\|", -1);
+            if (parts.length == 5 && ! parts[2].isEmpty()) {
+                try {
+                    FileAndKey upload = new FileAndKey();
+                    upload.fileId = Integer.parseInt(parts[3]);
+                    upload.key = parts[4];
+                    uploads.put(key(parts[0], parts[1], parts[2]), upload);
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        if (end < content.length) {
+            try (FileOutputStream truncate = new FileOutputStream(file, true)) {
+                truncate.getChannel().truncate(end);
+            }
+        }
+    }
+
+    private static String key(String server, String project, String hash) {
+        return server + "|" + project + "|" + hash;
+    }
+
+    /**
+     * Uploads a file to a project, unless the same content was uploaded there before
+     * @param cli
+     * @param project
+     * @param f
+     * @return the file id and key of the upload, or of the previous upload of the same content
+     * @throws MatrixLibException also when the upload failed, which is then not recorded
+     */
+    public FileAndKey upload(MatrixRestClient cli, String project, File f) throws MatrixLibException {
+        if (! f.isFile())
+            // the client reports it
+            return cli.uploadFile(f, project);
+        String key = key(cli.getBaseUrl(), project, hash(f));
+        CompletableFuture<FileAndKey> mine = new CompletableFuture<>();
+        CompletableFuture<FileAndKey> running;
+        synchronized (this) {
+            FileAndKey done = uploads.get(key);
+            if (done != null) {
+                reused++;
+                return done;
+            }
+            running = uploading.putIfAbsent(key, mine);
+            if (running != null)
+                reused++;
+        }
+        if (running != null)
+            return ThreadUtil.waitFor(running, "an upload");
+        try {
+            FileAndKey upload = cli.uploadFile(f, project);
+            // not the last status of the client: other threads share it. An error answer has no file id or key
+            if (upload == null || upload.fileId <= 0 || StringUtils.isEmpty(upload.key))
+                throw new MatrixLibException("Failed to upload " + f + ": the server returned no file id");
+            record(key, upload);
+            mine.complete(upload);
+            return upload;
+        } catch (MatrixLibException | RuntimeException ex) {
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            synchronized (this) {
+                uploading.remove(key);
+            }
+        }
+    }
+
+    private synchronized void record(String key, FileAndKey upload) throws MatrixLibException {
+        uploads.put(key, upload);
+        if (writer == null)
+            return;
+        try {
+            writer.write(key + "|" + upload.fileId + "|" + upload.key + "\n");
+            writer.flush();
+        } catch (IOException ex) {
+            throw new MatrixLibException(ex, "Failed to record the upload in " + file);
+        }
+    }
+
+    private String hash(File f) throws MatrixLibException {
+        String id = f.getAbsolutePath() + "|" + f.length() + "|" + f.lastModified();
+        synchronized (this) {
+            String known = hashes.get(id);
+            if (known != null)
+                return known;
+        }
+        try {
+            String hash = new ConversionState.ContentHash().addFile(f).getHash();
+            synchronized (this) {
+                hashes.put(id, hash);
+            }
+            return hash;
+        } catch (IOException ex) {
+            throw new MatrixLibException(ex, "Failed to read " + f);
+        }
+    }
+
+    /**
+     * @return the number of uploads avoided
+     */
+    public synchronized int getReused() {
+        return reused;
+    }
+
+    public synchronized int size() {
+        return uploads.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null)
+            writer.close();
+    }
+}
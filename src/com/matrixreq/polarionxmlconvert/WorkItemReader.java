@@ -0,0 +1,220 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import com.matrixreq.xml.XDocument;
+import com.matrixreq.xml.XmlException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming (StAX) reader for Polarion work item exports. Unlike XDocument.loadXmlFile it never builds the DOM of
+ * the whole export: each call to next() reads one workItem element and returns the few fields we need, so the
+ * reader itself only holds one work item at a time. What the caller keeps of the records is up to the caller.
+ *
+ * Expected layout:
+ * <pre>
+ *  &lt;workItems&gt;
+ *      &lt;workItem&gt;
+ *          &lt;fields&gt;
+ *              &lt;id&gt;ZBS01-23884&lt;/id&gt;
+ *              &lt;type id="designElement" .../&gt;
+ *              &lt;title&gt;...&lt;/title&gt;
+ *              &lt;module&gt;...&lt;/module&gt;
+ *              &lt;outlineNumber&gt;3.2-1&lt;/outlineNumber&gt;
+ *              &lt;description&gt;&lt;html&gt;...xhtml...&lt;/html&gt;&lt;/description&gt;
+ *              &lt;linkedWorkItems&gt;&lt;linkedWorkItem&gt;&lt;role id="parent"/&gt;&lt;workItem workItemId="..."/&gt;&lt;/linkedWorkItem&gt;&lt;/linkedWorkItems&gt;
+ *              &lt;linkedWorkItemsDerived&gt;...&lt;/linkedWorkItemsDerived&gt;
+ *          &lt;/fields&gt;
+ *      &lt;/workItem&gt;
+ *  &lt;/workItems&gt;
+ * </pre>
+ */
+public class WorkItemReader implements WorkItemSource {
+
+    private final InputStream input;
+    private final XMLStreamReader reader;
+    private int depth = 0;
+
+    public WorkItemReader(InputStream input) throws XmlException {
+        this.input = input;
+        try {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            reader = factory.createXMLStreamReader(input);
+        } catch (XMLStreamException ex) {
+            throw new XmlException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Opens a Polarion export file: .xml, or .xmlz/.zip/.gz read directly from the archive
+     * @param file see XDocument.findXmlFileOrZip
+     * @return a reader positioned before the first work item
+     * @throws XmlException
+     */
+    public static WorkItemReader open(File file) throws XmlException {
+        return new WorkItemReader(XDocument.openXmlFileFromXmlOrZip(file));
+    }
+
+    @Override
+    public WorkItemRecord next() throws XmlException {
+        try {
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        depth++;
+                        // workItem elements are the children of the document element
+                        if (depth == 2 && "workItem".equals(reader.getLocalName())) {
+                            WorkItemRecord ret = readWorkItem();
+                            depth--;
+                            return ret;
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        depth--;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return null;
+        } catch (XMLStreamException ex) {
+            throw new XmlException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            reader.close();
+        } catch (XMLStreamException ex) {
+            throw new IOException(ex);
+        } finally {
+            input.close();
+        }
+    }
+
+    // Called on the workItem start element, returns on its end element
+    private WorkItemRecord readWorkItem() throws XMLStreamException {
+        WorkItemRecord ret = new WorkItemRecord();
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+            if (reader.isStartElement()) {
+                if ("fields".equals(reader.getLocalName()))
+                    readFields(ret);
+                else
+                    skipElement();
+            }
+        }
+        return ret;
+    }
+
+    private void readFields(WorkItemRecord ret) throws XMLStreamException {
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+            if (! reader.isStartElement())
+                continue;
+            switch (reader.getLocalName()) {
+                case "id":
+                    ret.id = readText();
+                    break;
+                case "type":
+                    ret.type = reader.getAttributeValue(null, "id");
+                    skipElement();
+                    break;
+                case "title":
+                    ret.title = readText();
+                    break;
+                case "module":
+                    ret.module = readText();
+                    break;
+                case "outlineNumber":
+                    ret.outlineNumber = readText();
+                    break;
+                case "description":
+                    ret.description = DescriptionSerializer.toHtml(reader);
+                    break;
+                case "linkedWorkItems":
+                    readLinks(ret.linkedWorkItems);
+                    break;
+                case "linkedWorkItemsDerived":
+                    readLinks(ret.linkedWorkItemsDerived);
+                    break;
+                default:
+                    skipElement();
+                    break;
+            }
+        }
+    }
+
+    private void readLinks(List<WorkItemRecord.Link> links) throws XMLStreamException {
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+            if (! reader.isStartElement())
+                continue;
+            if (! "linkedWorkItem".equals(reader.getLocalName())) {
+                skipElement();
+                continue;
+            }
+            String role = null;
+            String workItemId = null;
+            while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+                if (! reader.isStartElement())
+                    continue;
+                if ("role".equals(reader.getLocalName()))
+                    role = reader.getAttributeValue(null, "id");
+                else if ("workItem".equals(reader.getLocalName()))
+                    workItemId = reader.getAttributeValue(null, "workItemId");
+                skipElement();
+            }
+            if (role != null && workItemId != null)
+                links.add(new WorkItemRecord.Link(role, workItemId));
+        }
+    }
+
+    /**
+     * Same as XElement.getText: the trimmed texts just below the current element, nested elements are ignored
+     */
+    private String readText() throws XMLStreamException {
+        String text = "";
+        while (reader.next() != XMLStreamConstants.END_ELEMENT) {
+            if (reader.isStartElement())
+                skipElement();
+            else if (reader.isCharacters())
+                text += " " + reader.getText().trim();
+        }
+        return text.trim();
+    }
+
+    // Called on a start element, returns on the matching end element
+    private void skipElement() throws XMLStreamException {
+        int level = 1;
+        while (level > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                level++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                level--;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fields of one Polarion workItem the converter cares about, as read by WorkItemReader
+ */
+public class WorkItemRecord {
+
+    /**
+     * One linkedWorkItem: the role id and the id of the linked work item (not resolved)
+     */
+    public static class Link {
+        public final String role;
+        public final String workItemId;
+
+        public Link(String role, String workItemId) {
+            this.role = role;
+            this.workItemId = workItemId;
+        }
+    }
+
+    public String id;
+    public String type;
+    public String title;
+    public String module;
+    public String outlineNumber;
+    // HTML of the description, without the description/html wrappers. null if there's no description
+    public String description;
+
+    public final List<Link> linkedWorkItems = new ArrayList<>();
+    public final List<Link> linkedWorkItemsDerived = new ArrayList<>();
+
+    @Override
+    public String toString() {
+        return id + " " + type + " " + outlineNumber + " " + title;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import com.matrixreq.xml.XmlException;
+import java.io.Closeable;
+
+/**
+ * Ordered stream of the work items of a Polarion export
+ */
+public interface WorkItemSource extends Closeable {
+
+    /**
+     * @return the next work item of the export, or null when the end of the file is reached
+     * @throws XmlException
+     */
+    WorkItemRecord next() throws XmlException;
+}
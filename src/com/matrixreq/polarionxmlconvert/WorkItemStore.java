@@ -0,0 +1,281 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+package com.matrixreq.polarionxmlconvert;
+
+import com.matrixreq.lib.FileUtil;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column oriented store of the parsed work items. Each work item is a row index; its values live in arrays rather
+ * than in one object per item:
+ * - ids, types, modules, outline numbers and link roles are interned in a string pool, so a type id or a module
+ *   name shared by 50k items is held once
+ * - links are packed (role, target) int pairs in a single array per direction
+ * - description HTML is written once to a spill file and read back when the item is converted, so it never stays
+ *   on the heap
+ */
+public class WorkItemStore implements Closeable {
+
+    /**
+     * Maps strings to small ints and back: each distinct value is stored once
+     */
+    public static class StringPool {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        /**
+         * @param value
+         * @return the index of value in the pool, -1 for null
+         */
+        public int index(String value) {
+            if (value == null)
+                return -1;
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = values.size();
+                indexes.put(value, index);
+                values.add(value);
+            }
+            return index;
+        }
+
+        public String get(int index) {
+            return index < 0 ? null : values.get(index);
+        }
+
+        /**
+         * @param value
+         * @return the pooled instance equal to value
+         */
+        public String intern(String value) {
+            return get(index(value));
+        }
+
+        public int size() {
+            return values.size();
+        }
+    }
+
+    /**
+     * Growable int array
+     */
+    private static class IntColumn {
+        private int[] data = new int[1024];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = value;
+        }
+
+        int get(int index) {
+            return data[index];
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    private final StringPool pool = new StringPool();
+    private int size = 0;
+
+    private int[] ids = new int[1024];
+    private int[] types = new int[1024];
+    private int[] modules = new int[1024];
+    private int[] outlineNumbers = new int[1024];
+    private String[] titles = new String[1024];
+
+    // description i is descriptionLength[i] UTF-8 bytes at descriptionOffset[i] in the spill file, -1 if none
+    private long[] descriptionOffset = new long[1024];
+    private int[] descriptionLength = new int[1024];
+
+    // links of item i are the pairs [linkStart[i], linkStart[i + 1]) of linkData
+    private final IntColumn linkStart = new IntColumn();
+    private final IntColumn linkData = new IntColumn();
+    private final IntColumn derivedStart = new IntColumn();
+    private final IntColumn derivedData = new IntColumn();
+
+    private final File spillFile;
+    private final OutputStream spillOut;
+    private long spillSize = 0;
+    private long flushedSize = 0;
+    private RandomAccessFile spillIn;
+
+    public WorkItemStore() throws IOException {
+        spillFile = new File(FileUtil.createTempFile("workitems", ".html"));
+        spillFile.deleteOnExit();
+        spillOut = new BufferedOutputStream(new FileOutputStream(spillFile), 1 << 16);
+        linkStart.add(0);
+        derivedStart.add(0);
+    }
+
+    /**
+     * Adds a parsed work item. The record can be dropped afterwards
+     * @param record
+     * @return the index of the item in the store
+     * @throws IOException
+     */
+    public synchronized int add(WorkItemRecord record) throws IOException {
+        if (size == ids.length)
+            grow();
+        ids[size] = pool.index(record.id);
+        types[size] = pool.index(record.type);
+        modules[size] = pool.index(record.module);
+        outlineNumbers[size] = pool.index(record.outlineNumber);
+        titles[size] = record.title;
+        if (record.description == null) {
+            descriptionOffset[size] = -1;
+            descriptionLength[size] = -1;
+        } else {
+            byte[] bytes = record.description.getBytes(StandardCharsets.UTF_8);
+            spillOut.write(bytes);
+            descriptionOffset[size] = spillSize;
+            descriptionLength[size] = bytes.length;
+            spillSize += bytes.length;
+        }
+        addLinks(record.linkedWorkItems, linkStart, linkData);
+        addLinks(record.linkedWorkItemsDerived, derivedStart, derivedData);
+        return size++;
+    }
+
+    private void addLinks(List<WorkItemRecord.Link> links, IntColumn start, IntColumn data) {
+        for (WorkItemRecord.Link link: links) {
+            data.add(pool.index(link.role));
+            data.add(pool.index(link.workItemId));
+        }
+        start.add(data.size());
+    }
+
+    private void grow() {
+        int newSize = ids.length * 2;
+        ids = Arrays.copyOf(ids, newSize);
+        types = Arrays.copyOf(types, newSize);
+        modules = Arrays.copyOf(modules, newSize);
+        outlineNumbers = Arrays.copyOf(outlineNumbers, newSize);
+        titles = Arrays.copyOf(titles, newSize);
+        descriptionOffset = Arrays.copyOf(descriptionOffset, newSize);
+        descriptionLength = Arrays.copyOf(descriptionLength, newSize);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public StringPool getPool() {
+        return pool;
+    }
+
+    public String getId(int item) {
+        return pool.get(ids[item]);
+    }
+
+    public String getType(int item) {
+        return pool.get(types[item]);
+    }
+
+    public String getModule(int item) {
+        return pool.get(modules[item]);
+    }
+
+    public String getOutlineNumber(int item) {
+        return pool.get(outlineNumbers[item]);
+    }
+
+    public String getTitle(int item) {
+        return titles[item];
+    }
+
+    /**
+     * Reads the description back from the spill file
+     * @param item
+     * @return the description HTML, null if the work item has none
+     * @throws IOException
+     */
+    public synchronized String getDescription(int item) throws IOException {
+        if (descriptionLength[item] < 0)
+            return null;
+        if (descriptionOffset[item] + descriptionLength[item] > flushedSize) {
+            spillOut.flush();
+            flushedSize = spillSize;
+        }
+        if (spillIn == null)
+            spillIn = new RandomAccessFile(spillFile, "r");
+        byte[] bytes = new byte[descriptionLength[item]];
+        spillIn.seek(descriptionOffset[item]);
+        spillIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public List<WorkItemRecord.Link> getLinkedWorkItems(int item) {
+        return getLinks(item, linkStart, linkData);
+    }
+
+    public List<WorkItemRecord.Link> getLinkedWorkItemsDerived(int item) {
+        return getLinks(item, derivedStart, derivedData);
+    }
+
+    private List<WorkItemRecord.Link> getLinks(int item, IntColumn start, IntColumn data) {
+        List<WorkItemRecord.Link> ret = new ArrayList<>();
+        for (int i = start.get(item); i < start.get(item + 1); i += 2)
+            ret.add(new WorkItemRecord.Link(pool.get(data.get(i)), pool.get(data.get(i + 1))));
+        return ret;
+    }
+
+    /**
+     * Rebuilds the full record of an item, including its description
+     * @param item
+     * @return a new WorkItemRecord
+     * @throws IOException
+     */
+    public WorkItemRecord getRecord(int item) throws IOException {
+        WorkItemRecord ret = new WorkItemRecord();
+        ret.id = getId(item);
+        ret.type = getType(item);
+        ret.title = getTitle(item);
+        ret.module = getModule(item);
+        ret.outlineNumber = getOutlineNumber(item);
+        ret.description = getDescription(item);
+        ret.linkedWorkItems.addAll(getLinkedWorkItems(item));
+        ret.linkedWorkItemsDerived.addAll(getLinkedWorkItemsDerived(item));
+        return ret;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            spillOut.close();
+            if (spillIn != null)
+                spillIn.close();
+        } finally {
+            spillFile.delete();
+        }
+    }
+}
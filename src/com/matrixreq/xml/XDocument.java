@@ -16,11 +16,12 @@
 
 package com.matrixreq.xml;
 
-import com.matrixreq.lib.FileUtil;
+import com.matrixreq.lib.MatrixLibException;
 import com.matrixreq.lib.XmlUtil;
 import com.matrixreq.lib.ZipUtil;
 import com.matrixreq.lib.XmlUtil.XmlUtilException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -30,6 +31,7 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import javax.xml.stream.FactoryConfigurationError;
@@ -75,12 +77,8 @@ public class XDocument {
      * @throws XmlException
      */
     public static XDocument stringToXmlDoc (String s) throws XmlException {
-        DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-        docFactory.setNamespaceAware(true);
-        DocumentBuilder builder;
         try {
-            builder = docFactory.newDocumentBuilder();
-            Document doc = builder.parse(new InputSource(new StringReader(s)));
+            Document doc = loadXml(new InputSource(new StringReader(s)));
             XDocument xdoc = new XDocument(doc);
             return xdoc;
         } catch (Exception ex) {
@@ -95,14 +93,11 @@ public class XDocument {
      * @throws XmlException
      */
     public static XDocument loadXmlFile(File fXmlFile) throws XmlException {
-        try {
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            // http://www.edankert.com/defaultnamespaces.html : if we don't do this, we can't search with XPath on namespaces
-            dbFactory.setNamespaceAware(true);
-            DocumentBuilder dBuilder;
-            dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(fXmlFile);
-            return new XDocument(doc);
+        try (InputStream in = new FileInputStream(fXmlFile)) {
+            InputSource source = new InputSource(in);
+            // relative references are resolved from the file, as when the parser opens it
+            source.setSystemId(fXmlFile.toURI().toString());
+            return new XDocument(loadXml(source));
         } catch (Exception ex) {
             throw new XmlException(ex.getMessage());
         }
@@ -120,31 +115,80 @@ public class XDocument {
     }
 
     /**
-     * This function can load an xml file or one stored in a zip, provided the zip only has one file in it
+     * Opens the XML of an .xml, .xmlz, .zip or .gz file as a stream, nothing is extracted to disk.
+     * If fileName doesn't exist, fileName with the .xmlz extension is tried
      * @param fileName
-     * @return
+     * @return a stream to close by the caller
      * @throws XmlException
      */
-    public static XDocument loadXmlFileFromXmlOrZip(String fileName) throws XmlException {
-        File fXmlFile = new File(fileName);
-        if (fXmlFile.exists())
-            return loadXmlFile(fXmlFile);
-        File fZipFile = new File(fileName.replace(".xml", "." + XML_ZIP_EXTENSION));
-        if (! fZipFile.exists())
+    public static InputStream openXmlFileFromXmlOrZip(String fileName) throws XmlException {
+        return openXmlFileFromXmlOrZip(findXmlFileOrZip(fileName));
+    }
+
+    /**
+     * @param fileName
+     * @return the file opened by openXmlFileFromXmlOrZip(fileName): fileName, or fileName with the .xmlz extension if
+     * fileName doesn't exist
+     * @throws XmlException if neither exists
+     */
+    public static File findXmlFileOrZip(String fileName) throws XmlException {
+        File file = new File(fileName);
+        if (! file.exists())
+            file = new File(fileName.replace(".xml", "." + XML_ZIP_EXTENSION));
+        if (! file.exists())
             throw new XmlException("File doesn't exist");
+        return file;
+    }
+
+    /**
+     * Opens the XML of an .xml, .xmlz, .zip or .gz file as a stream, nothing is extracted to disk
+     * @param file
+     * @return a stream to close by the caller
+     * @throws XmlException
+     */
+    public static InputStream openXmlFileFromXmlOrZip(File file) throws XmlException {
         try {
-            String tempFolder = FileUtil.createTempFolder("unzip");
-            ZipUtil.unzipFile(fZipFile, new File(tempFolder), null);
-            ArrayList<String> listFiles = FileUtil.listFiles(tempFolder, null);
-            if (listFiles == null || listFiles.size() != 1)
-                throw new Exception("No files in that zip");
-            fXmlFile = new File(tempFolder, listFiles.get(0));
-            XDocument ret = loadXmlFile(fXmlFile);
-            FileUtil.removeFolderSafe(tempFolder);
-            return ret;
+            return ZipUtil.openUncompressed(file);
+        }
+        catch (MatrixLibException ex) {
+            throw new XmlException("Unable to unzip " + file.getAbsolutePath() + " - " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Parses an XML stream, namespace aware. loadXmlFile and stringToXmlDoc parse the same way
+     * @param in not closed here
+     * @return
+     * @throws ParserConfigurationException
+     * @throws SAXException
+     * @throws IOException
+     */
+    public static Document loadXml(InputStream in) throws ParserConfigurationException, SAXException, IOException {
+        return loadXml(new InputSource(in));
+    }
+
+    private static Document loadXml(InputSource source) throws ParserConfigurationException, SAXException, IOException {
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        // http://www.edankert.com/defaultnamespaces.html : if we don't do this, we can't search with XPath on namespaces
+        dbFactory.setNamespaceAware(true);
+        return dbFactory.newDocumentBuilder().parse(source);
+    }
+
+    /**
+     * This function can load an xml file or one stored in a zip, provided the zip only has one file in it, or in a gzip
+     * @param fileName
+     * @return
+     * @throws XmlException
+     */
+    public static XDocument loadXmlFileFromXmlOrZip(String fileName) throws XmlException {
+        try (InputStream in = openXmlFileFromXmlOrZip(fileName)) {
+            return new XDocument(loadXml(in));
+        }
+        catch (XmlException ex) {
+            throw ex;
         }
         catch (Exception ex) {
-            throw new XmlException("Unable to unzip " + fZipFile.getAbsolutePath() + " - " + ex.getMessage());
+            throw new XmlException(ex.getMessage());
         }
     }
 
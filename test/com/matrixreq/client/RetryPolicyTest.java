@@ -0,0 +1,131 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+
+package com.matrixreq.client;
+
+import java.util.Date;
+import org.apache.http.client.utils.DateUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Which requests RetryPolicy sends again, by method and status, and how long it waits before
+ */
+public class RetryPolicyTest {
+
+    private static final String[] METHODS = { "GET", "HEAD", "OPTIONS", "PUT", "DELETE", "POST", "PATCH" };
+    private static final int[] STATUSES = { 200, 201, 400, 401, 404, 409, 429, 500, 501, 502, 503, 504 };
+
+    private static boolean retryable(int status) {
+        return status == 429 || status == 502 || status == 503 || status == 504;
+    }
+
+    @Test
+    public void idempotentMethods() {
+        for (String method : METHODS)
+            assertEquals(method, ! method.equals("POST") && ! method.equals("PATCH"), RetryPolicy.isIdempotent(method));
+    }
+
+    @Test
+    public void statusMatrix() {
+        RetryPolicy policy = new RetryPolicy(3);
+        for (String method : METHODS) {
+            for (int status : STATUSES) {
+                String what = method + " " + status;
+                assertEquals(what, retryable(status), RetryPolicy.isRetryableStatus(status));
+                assertEquals(what, retryable(status) && RetryPolicy.isIdempotent(method), policy.shouldRetryStatus(1, method, status));
+                assertEquals(what, retryable(status), policy.shouldRetryStatus(1, method, status, true));
+            }
+        }
+    }
+
+    @Test
+    public void postIsNotSentTwiceAfterThrottling() {
+        RetryPolicy policy = new RetryPolicy(3);
+        assertFalse(policy.shouldRetryStatus(1, "POST", 429));
+        assertFalse(policy.shouldRetryStatus(1, "POST", 503));
+        assertTrue(policy.shouldRetryStatus(1, "POST", 503, true));
+    }
+
+    @Test
+    public void noRetryPastMaxRetries() {
+        RetryPolicy policy = new RetryPolicy(2);
+        assertTrue(policy.shouldRetryStatus(2, "GET", 503));
+        assertFalse(policy.shouldRetryStatus(3, "GET", 503));
+        assertFalse(policy.shouldRetryStatus(3, "POST", 503, true));
+        assertTrue(policy.shouldRetryError(2, "GET", true));
+        assertFalse(policy.shouldRetryError(3, "GET", true));
+        assertFalse(policy.shouldRetryError(3, "POST", false));
+        assertFalse(new RetryPolicy(0).shouldRetryStatus(1, "GET", 503));
+    }
+
+    @Test
+    public void errorBeforeTheRequestWasSent() {
+        RetryPolicy policy = new RetryPolicy(3);
+        for (String method : METHODS) {
+            assertTrue(method, policy.shouldRetryError(1, method, false));
+            assertEquals(method, RetryPolicy.isIdempotent(method), policy.shouldRetryError(1, method, true));
+        }
+    }
+
+    @Test
+    public void backoffStaysUnderTheCeiling() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 1000);
+        for (int retry = 1; retry <= 10; retry++) {
+            long ceiling = Math.min(1000, 100L << (retry - 1));
+            for (int i = 0; i < 200; i++) {
+                long delay = policy.backoffMillis(retry);
+                assertTrue(retry + ": " + delay, delay >= 0 && delay <= ceiling);
+            }
+        }
+        // a large retry number doesn't overflow the shift
+        for (int i = 0; i < 200; i++) {
+            long delay = policy.backoffMillis(1000);
+            assertTrue(String.valueOf(delay), delay >= 0 && delay <= 1000);
+        }
+    }
+
+    @Test
+    public void parseRetryAfter() {
+        assertEquals(-1, RetryPolicy.parseRetryAfter(null));
+        assertEquals(-1, RetryPolicy.parseRetryAfter(""));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("  "));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon"));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("-5"));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("99999999999999999999"));
+        assertEquals(0, RetryPolicy.parseRetryAfter("0"));
+        assertEquals(5000, RetryPolicy.parseRetryAfter(" 5 "));
+        assertEquals(0, RetryPolicy.parseRetryAfter(DateUtils.formatDate(new Date(System.currentTimeMillis() - 60000))));
+        long inAMinute = RetryPolicy.parseRetryAfter(DateUtils.formatDate(new Date(System.currentTimeMillis() + 60000)));
+        assertTrue(String.valueOf(inAMinute), inAMinute > 55000 && inAMinute <= 60000);
+    }
+
+    @Test
+    public void delayUsesRetryAfterUpToMaxDelay() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 10000);
+        assertEquals(2000, policy.delayMillis(1, "2"));
+        assertEquals(10000, policy.delayMillis(1, "3600"));
+        for (int i = 0; i < 200; i++) {
+            long delay = policy.delayMillis(2, "soon");
+            assertTrue(String.valueOf(delay), delay >= 0 && delay <= 200);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+package com.matrixreq.client.matrixrestclient;
+
+import com.matrixreq.client.matrixrestclient.struct.JobStatus;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How the end of an import job is read from its status
+ */
+public class ImportJobTest {
+
+    @Test
+    public void jobFailedOnlyWhenItsStatusSaysSo() {
+        List<String> failed = Arrays.asList("Error", "error: bad file", "Import failed", "FAILED");
+        for (String text : failed)
+            assertTrue(text, MatrixRestClient.isJobFailed(status(text, 100)));
+        List<String> fine = Arrays.asList("Done", "done", "", "Running");
+        for (String text : fine)
+            assertFalse(text, MatrixRestClient.isJobFailed(status(text, 100)));
+        assertFalse(MatrixRestClient.isJobFailed(status(null, 100)));
+        assertFalse(MatrixRestClient.isJobFailed(null));
+    }
+
+    private static JobStatus status(String text, int progress) {
+        JobStatus status = new JobStatus();
+        status.setStatus(text);
+        status.setProgress(progress);
+        return status;
+    }
+}
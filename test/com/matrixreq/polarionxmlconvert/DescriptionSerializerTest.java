@@ -0,0 +1,79 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+
+package com.matrixreq.polarionxmlconvert;
+
+import java.io.StringReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The HTML written from a description: wrappers and default namespaces dropped, prefixed names declared, and text and
+ * attributes escaped like the Transformer did
+ */
+public class DescriptionSerializerTest {
+
+    private static final String OPEN = "<description xmlns=\"http://polarion.com/xml-export\" xmlns:p=\"urn:p\">"
+        + "<html xmlns=\"http://www.w3.org/1999/xhtml\">";
+    private static final String CLOSE = "</html></description>";
+
+    private static String toHtml(String content) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        XMLStreamReader reader = factory.createXMLStreamReader(new StringReader("<root>" + OPEN + content + CLOSE + "<after/></root>"));
+        while (! (reader.next() == XMLStreamConstants.START_ELEMENT && "description".equals(reader.getLocalName())))
+            ;
+        String ret = DescriptionSerializer.toHtml(reader);
+        // the reader is left on the end of the description
+        reader.nextTag();
+        assertEquals("after", reader.getLocalName());
+        return ret;
+    }
+
+    @Test
+    public void wrappersAndDefaultNamespacesAreDropped() throws XMLStreamException {
+        assertEquals("<span style=\"font-weight: bold;\">Log</span><br>text",
+            toHtml("<span style=\"font-weight: bold;\">Log</span><br/>text"));
+    }
+
+    @Test
+    public void textAndAttributesAreEscaped() throws XMLStreamException {
+        assertEquals("<span title=\"a &lt; b &gt; c &amp; &quot;d&quot;\">1 &lt; 2 &amp;&amp; 3 &gt; 2 \"q\"</span>",
+            toHtml("<span title=\"a &lt; b > c &amp; &quot;d&quot;\">1 &lt; 2 &amp;&amp; 3 &gt; 2 \"q\"</span>"));
+    }
+
+    @Test
+    public void prefixesDeclaredAboveAreDeclaredWhereUsed() throws XMLStreamException {
+        assertEquals("<p:box xmlns:p=\"urn:p\" p:kind=\"x\"><p:item>a</p:item></p:box><span xml:lang=\"fr\">b</span>",
+            toHtml("<p:box p:kind=\"x\"><p:item>a</p:item></p:box><span xml:lang=\"fr\">b</span>"));
+    }
+
+    @Test
+    public void prefixesDeclaredInTheDescriptionAreKept() throws XMLStreamException {
+        assertEquals("<div><q:a xmlns:q=\"urn:q\">1</q:a><span xmlns:q=\"urn:q\" q:b=\"2\">x</span></div>",
+            toHtml("<div><q:a xmlns:q=\"urn:q\">1</q:a><span q:b=\"2\" xmlns:q=\"urn:q\">x</span></div>"));
+        assertEquals("<div xmlns:q=\"urn:q\"><q:a>1</q:a></div>",
+            toHtml("<div xmlns:q=\"urn:q\"><q:a>1</q:a></div>"));
+    }
+}
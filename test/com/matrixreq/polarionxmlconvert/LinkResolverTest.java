@@ -0,0 +1,131 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+package com.matrixreq.polarionxmlconvert;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The sort-merge join of LinkResolver gives the same links as a map of the items by id, whether everything fits in
+ * memory or the items and edges are spilled to run files
+ */
+public class LinkResolverTest {
+
+    private static class Link {
+        final String targetId;
+        final int source;
+        final boolean derived;
+        final String role;
+
+        Link(int source, boolean derived, String role, String targetId) {
+            this.source = source;
+            this.derived = derived;
+            this.role = role;
+            this.targetId = targetId;
+        }
+    }
+
+    private static List<String> resolve(int maxInMemory, List<String> ids, List<Link> links) throws IOException {
+        List<String> ret = new ArrayList<>();
+        try (LinkResolver resolver = new LinkResolver(maxInMemory)) {
+            for (int index = 0; index < ids.size(); index++)
+                resolver.addItem(ids.get(index), index);
+            for (Link link : links)
+                resolver.addLink(link.source, link.derived, link.role, link.targetId);
+            resolver.resolve((source, derived, role, target) -> ret.add(source + " " + derived + " " + role + " " + target));
+        }
+        return ret;
+    }
+
+    /**
+     * What the converter did before LinkResolver: the last item of an id wins, links to unknown ids are dropped
+     */
+    private static List<String> resolveWithMap(List<String> ids, List<Link> links) {
+        Map<String, Integer> byId = new HashMap<>();
+        for (int index = 0; index < ids.size(); index++)
+            byId.put(ids.get(index), index);
+        List<String> ret = new ArrayList<>();
+        for (Link link : links) {
+            Integer target = byId.get(link.targetId);
+            if (target != null)
+                ret.add(link.source + " " + link.derived + " " + link.role + " " + target);
+        }
+        return ret;
+    }
+
+    @Test
+    public void keepsTheOrderOfTheEdgesAndDropsUnknownTargets() throws IOException {
+        List<String> ids = Arrays.asList("WI-3", "WI-1", "WI-2");
+        List<Link> links = Arrays.asList(
+            new Link(0, false, "parent", "WI-2"),
+            new Link(0, false, "relates_to", "WI-9"),
+            new Link(1, true, "parent", "WI-3"),
+            new Link(2, false, "parent", "WI-1"),
+            new Link(2, false, "relates_to", "WI-3"));
+        List<String> expected = Arrays.asList(
+            "0 false parent 2",
+            "1 true parent 0",
+            "2 false parent 1",
+            "2 false relates_to 0");
+        assertEquals(expected, resolve(LinkResolver.DEFAULT_MAX_IN_MEMORY, ids, links));
+        assertEquals(expected, resolve(1, ids, links));
+    }
+
+    @Test
+    public void duplicateIdsGoToTheLastItemInMemoryAndInRunFiles() throws IOException {
+        // WI-1 three times, spread over several runs with a tiny buffer
+        List<String> ids = Arrays.asList("WI-1", "WI-2", "WI-1", "WI-3", "WI-1", "WI-2");
+        List<Link> links = Arrays.asList(
+            new Link(1, false, "parent", "WI-1"),
+            new Link(3, false, "parent", "WI-2"),
+            new Link(0, true, "parent", "WI-1"));
+        List<String> expected = Arrays.asList("1 false parent 4", "3 false parent 5", "0 true parent 4");
+        assertEquals(expected, resolveWithMap(ids, links));
+        for (int maxInMemory : new int[] {1, 2, 3, 4, LinkResolver.DEFAULT_MAX_IN_MEMORY})
+            assertEquals("maxInMemory " + maxInMemory, expected, resolve(maxInMemory, ids, links));
+    }
+
+    @Test
+    public void sameLinksAsAMapOnRandomExports() throws IOException {
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            int nbItems = 1 + random.nextInt(300);
+            List<String> ids = new ArrayList<>();
+            for (int index = 0; index < nbItems; index++)
+                // few enough ids for duplicates
+                ids.add("WI-" + random.nextInt(nbItems));
+            List<Link> links = new ArrayList<>();
+            int nbLinks = random.nextInt(3 * nbItems);
+            for (int link = 0; link < nbLinks; link++)
+                links.add(new Link(random.nextInt(nbItems), random.nextBoolean(), random.nextBoolean() ? "parent" : "relates_to",
+                    // some targets are not in the export
+                    "WI-" + random.nextInt(nbItems + 20)));
+            List<String> expected = resolveWithMap(ids, links);
+            for (int maxInMemory : new int[] {1, 7, 64, LinkResolver.DEFAULT_MAX_IN_MEMORY})
+                assertEquals("round " + round + ", maxInMemory " + maxInMemory, expected, resolve(maxInMemory, ids, links));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+
+package com.matrixreq.polarionxmlconvert;
+
+import com.matrixreq.lib.StringUtil;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * OutlineKey parses and orders outline numbers like the former outlineToInts and the comparators built on it,
+ * including the levels that don't fit in the packed long
+ */
+public class OutlineKeyTest {
+
+    private static final List<String> OUTLINES = Arrays.asList(
+        "", "1", "2", "10", "1.1", "1-1", "1.2", "1.10", "1.1-1", "1.1-2", "1.1.1.1", "1.1.1.1.1", "1.1.1.2",
+        "3.2-1", "3.2.", "3..2", ".3", "3-", "+4.1", "x.1", "1.x", "1.2a", "65534", "65535", "65536", "1.70000",
+        "1.70000.1", "1.1.1.99999", "2147483647", "2147483648", "0", "0.0");
+
+    // converts 3.2-1 to [3,2,1], as PolarionXmlConvert did
+    private static List<Integer> outlineToInts(String input) {
+        input = input.replace(".", "-");
+        String[] split = StringUtil.splitOnString(input, "-");
+        List<Integer> ret = new ArrayList<>();
+        for (String s : split)
+            ret.add(StringUtil.stringToIntZero(s));
+        return ret;
+    }
+
+    // the former compareOutlineNumbers: a number comes before the numbers below it
+    private static int compareOutlineNumbers(String a, String b) {
+        List<Integer> al = outlineToInts(a);
+        List<Integer> bl = outlineToInts(b);
+        int len = Math.min(al.size(), bl.size());
+        for (int i = 0; i < len; i++) {
+            int ret = Integer.compare(al.get(i), bl.get(i));
+            if (ret != 0)
+                return ret;
+        }
+        return al.size() - bl.size();
+    }
+
+    // the former CustomComparator: a number comes after the numbers below it
+    private static int compareDeepestFirst(String a, String b) {
+        List<Integer> al = outlineToInts(a);
+        List<Integer> bl = outlineToInts(b);
+        int len = Math.min(al.size(), bl.size());
+        for (int i = 0; i < len; i++) {
+            int ret = Integer.compare(al.get(i), bl.get(i));
+            if (ret != 0)
+                return ret;
+        }
+        return bl.size() - al.size();
+    }
+
+    private static String joined(List<Integer> levels) {
+        StringBuilder ret = new StringBuilder();
+        for (Integer level : levels) {
+            if (ret.length() > 0)
+                ret.append('.');
+            ret.append(level);
+        }
+        return ret.toString();
+    }
+
+    private static List<String> randomOutlines(long seed, int count) {
+        Random random = new Random(seed);
+        String[] parts = { "0", "1", "2", "9", "10", "127", "128", "65534", "65535", "65536", "100000", "", "x" };
+        List<String> ret = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            StringBuilder outline = new StringBuilder();
+            int depth = 1 + random.nextInt(6);
+            for (int level = 0; level < depth; level++) {
+                if (level > 0)
+                    outline.append(random.nextBoolean() ? '.' : '-');
+                outline.append(parts[random.nextInt(parts.length)]);
+            }
+            ret.add(outline.toString());
+        }
+        return ret;
+    }
+
+    private static List<String> allOutlines() {
+        List<String> ret = new ArrayList<>(OUTLINES);
+        ret.addAll(randomOutlines(42, 300));
+        return ret;
+    }
+
+    @Test
+    public void parseGivesTheLevelsOfOutlineToInts() {
+        for (String outline : allOutlines()) {
+            OutlineKey key = OutlineKey.parse(outline);
+            assertEquals(outline, joined(outlineToInts(outline)), key.toString());
+            assertEquals(outline, outlineToInts(outline).size(), key.depth());
+        }
+    }
+
+    @Test
+    public void compareToOrdersLikeCompareOutlineNumbers() {
+        List<String> outlines = allOutlines();
+        for (String a : outlines) {
+            OutlineKey ka = OutlineKey.parse(a);
+            for (String b : outlines) {
+                OutlineKey kb = OutlineKey.parse(b);
+                assertEquals(a + " vs " + b, Integer.signum(compareOutlineNumbers(a, b)), Integer.signum(ka.compareTo(kb)));
+                assertEquals(a + " vs " + b, compareOutlineNumbers(a, b) == 0, ka.equals(kb));
+            }
+        }
+    }
+
+    @Test
+    public void compareDeepestFirstOrdersLikeCustomComparator() {
+        List<String> outlines = allOutlines();
+        for (String a : outlines) {
+            OutlineKey ka = OutlineKey.parse(a);
+            for (String b : outlines) {
+                int expected = Integer.signum(compareDeepestFirst(a, b));
+                assertEquals(a + " vs " + b, expected, Integer.signum(ka.compareDeepestFirst(OutlineKey.parse(b))));
+            }
+        }
+    }
+
+    @Test
+    public void headerKeepsTheFirstLevels() {
+        OutlineKey key = OutlineKey.parse("3.2-1");
+        assertEquals("3.2.1", key.toString());
+        assertEquals("3.2", key.header(2));
+        assertEquals("", key.header(0));
+        assertEquals("3.2.1", key.header(10));
+    }
+}
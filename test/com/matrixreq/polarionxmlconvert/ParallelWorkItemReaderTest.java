@@ -0,0 +1,107 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+package com.matrixreq.polarionxmlconvert;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Whatever the chunk size, and so wherever the chunks are cut around &lt;/workItem&gt;, the parallel reader returns
+ * the same records as a single WorkItemReader
+ */
+public class ParallelWorkItemReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String workItem(String id, String title, String outline, String links) {
+        return "<workItem id=\"" + id + "\"><fields>"
+            + "<id>" + id + "</id><type id=\"softwareRequirement\"/><title>" + title + "</title>"
+            + "<module>Mod</module><outlineNumber>" + outline + "</outlineNumber>"
+            + "<description><html xmlns=\"http://www.w3.org/1999/xhtml\"><p>Text of " + id + " &lt;/workItem&gt;<br/></p></html></description>"
+            + links
+            + "</fields></workItem>";
+    }
+
+    private static String link(String role, String target) {
+        return "<linkedWorkItem><role id=\"" + role + "\"/><workItem workItemId=\"" + target + "\"/></linkedWorkItem>";
+    }
+
+    private static String export() {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!-- export -->\n");
+        xml.append("<workItems xmlns:p=\"http://polarion.com\" project=\"P\">\n");
+        // no space, new lines and tabs between the items, linked workItem elements right after a role
+        String[] separators = {"", "\n", "\n\t", "  ", "\r\n"};
+        for (int i = 1; i <= 12; i++) {
+            String links = i > 1 ? "<linkedWorkItems>" + link("parent", "WI-" + (i - 1)) + link("relates_to", "WI-" + (i + 5)) + "</linkedWorkItems>" : "";
+            if (i % 3 == 0)
+                links += "<linkedWorkItemsDerived>" + link("parent", "WI-" + (i + 1)) + "</linkedWorkItemsDerived>";
+            // titles with multi byte characters, so some cuts fall inside a character
+            xml.append(workItem("WI-" + i, "Title \u00e9\u20ac " + i, "1." + i, links));
+            xml.append(separators[i % separators.length]);
+        }
+        xml.append("</workItems>\n");
+        return xml.toString();
+    }
+
+    private static String describe(WorkItemRecord record) {
+        StringBuilder ret = new StringBuilder(record.toString()).append(" ").append(record.module).append(" ").append(record.description);
+        for (WorkItemRecord.Link link : record.linkedWorkItems)
+            ret.append(" ").append(link.role).append(">").append(link.workItemId);
+        for (WorkItemRecord.Link link : record.linkedWorkItemsDerived)
+            ret.append(" ").append(link.role).append("<").append(link.workItemId);
+        return ret.toString();
+    }
+
+    private static List<String> readAll(WorkItemSource source) throws Exception {
+        List<String> ret = new ArrayList<>();
+        try (WorkItemSource reader = source) {
+            WorkItemRecord record;
+            while ((record = reader.next()) != null)
+                ret.add(describe(record));
+        }
+        return ret;
+    }
+
+    @Test
+    public void sameRecordsForEveryChunkSize() throws Exception {
+        byte[] content = export().getBytes(StandardCharsets.UTF_8);
+        File file = folder.newFile("export.xml");
+        Files.write(file.toPath(), content);
+        List<String> expected = readAll(new WorkItemReader(new ByteArrayInputStream(content)));
+        assertEquals(12, expected.size());
+        for (int chunkSize = 1; chunkSize <= content.length + 1; chunkSize += chunkSize < 300 ? 1 : 13)
+            assertEquals("chunk size " + chunkSize, expected, readAll(new ParallelWorkItemReader(file, 3, chunkSize)));
+    }
+
+    @Test
+    public void emptyExport() throws Exception {
+        File file = folder.newFile("empty.xml");
+        Files.write(file.toPath(), "<?xml version=\"1.0\"?>\n<workItems/>\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(new ArrayList<String>(), readAll(new ParallelWorkItemReader(file, 2, 16)));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+    Copyright (c) 2014-2023 Matrix Requirements GmbH - https://matrixreq.com
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+*/
+
+
+
+package com.matrixreq.polarionxmlconvert;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A journal cut in the middle of a line by a crash is replayed up to its last complete line and continued cleanly
+ */
+public class ResumeJournalTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void replayIgnoresTheTruncatedLastLine() throws IOException {
+        File file = new File(tmp.getRoot(), "export.xml.journal");
+        write(file, "WI-1|REQ-1|h1\nWI-2|REQ-2|\nWI-3|RE");
+
+        try (ResumeJournal journal = new ResumeJournal(file.getPath(), true)) {
+            Map<String, ConversionState.Entry> entries = journal.getEntries();
+            assertEquals(Arrays.asList("WI-1", "WI-2"), Arrays.asList(entries.keySet().toArray()));
+            assertEquals("REQ-1", journal.get("WI-1").matrixId);
+            assertEquals("h1", journal.get("WI-1").hash);
+            assertEquals("", journal.get("WI-2").hash);
+            assertNull(journal.get("WI-3"));
+            // the partial line is gone before anything is appended
+            assertEquals("WI-1|REQ-1|h1\nWI-2|REQ-2|\n", read(file));
+
+            journal.record("WI-3", "REQ-3", null);
+        }
+        assertEquals("WI-1|REQ-1|h1\nWI-2|REQ-2|\nWI-3|REQ-3|\n", read(file));
+
+        try (ResumeJournal journal = new ResumeJournal(file.getPath(), true)) {
+            assertEquals(3, journal.getEntries().size());
+            assertEquals("REQ-3", journal.get("WI-3").matrixId);
+        }
+    }
+
+    @Test
+    public void replayOfAJournalWithoutCompleteLine() throws IOException {
+        File file = new File(tmp.getRoot(), "export.xml.journal");
+        write(file, "WI-1|REQ");
+
+        try (ResumeJournal journal = new ResumeJournal(file.getPath(), true)) {
+            assertTrue(journal.getEntries().isEmpty());
+            assertEquals("", read(file));
+            journal.record("WI-1", "REQ-1", "h1");
+        }
+        assertEquals("WI-1|REQ-1|h1\n", read(file));
+    }
+
+    @Test
+    public void laterLinesOverrideEarlierOnes() throws IOException {
+        File file = new File(tmp.getRoot(), "export.xml.journal");
+        write(file, "WI-1|REQ-1|h1\nbroken\n|REQ-9|\nWI-1|REQ-1|h2\n");
+
+        try (ResumeJournal journal = new ResumeJournal(file.getPath(), true)) {
+            assertEquals(1, journal.getEntries().size());
+            assertEquals("h2", journal.get("WI-1").hash);
+        }
+    }
+
+    @Test
+    public void withoutResumeThePreviousJournalIsKeptAsBak() throws IOException {
+        File file = new File(tmp.getRoot(), "export.xml.journal");
+        write(file, "WI-1|REQ-1|h1\n");
+
+        try (ResumeJournal journal = new ResumeJournal(file.getPath(), false)) {
+            assertTrue(journal.getEntries().isEmpty());
+            journal.record("WI-2", "REQ-2", "h2");
+        }
+        assertEquals("WI-2|REQ-2|h2\n", read(file));
+        assertEquals("WI-1|REQ-1|h1\n", read(new File(file.getPath() + ".bak")));
+    }
+
+    @Test
+    public void linesAreWrittenByFlushAndClose() throws IOException {
+        File file = new File(tmp.getRoot(), "export.xml.journal");
+
+        try (ResumeJournal journal = new ResumeJournal(file.getPath(), false)) {
+            journal.record("WI-1", "REQ-1", "h1");
+            journal.flush();
+            assertEquals("WI-1|REQ-1|h1\n", read(file));
+            journal.record("WI-2", "REQ-2", "h2");
+        }
+        assertEquals("WI-1|REQ-1|h1\nWI-2|REQ-2|h2\n", read(file));
+    }
+
+    @Test
+    public void journalInMemoryOnly() throws IOException {
+        try (ResumeJournal journal = new ResumeJournal(null, true)) {
+            assertNull(journal.getFile());
+            journal.record("WI-1", "REQ-1", "h1");
+            journal.flush();
+            assertEquals("REQ-1", journal.get("WI-1").matrixId);
+            assertEquals(1, journal.getEntries().size());
+        }
+        assertEquals(0, tmp.getRoot().list().length);
+    }
+}